@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding values from builds and selecting a value, across pool sizes and how much of the pool is in use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BuildPoolValuesBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int poolSize;
+
+    /**
+     * unused: no values used by builds, functional: every value used by a successful build,
+     * lastFree: every value but the last is used by a running build
+     */
+    @Param({"unused", "functional", "lastFree"})
+    public String hitPattern;
+
+    private PoolValueSet pool;
+
+    private final List<String> buildValues = new ArrayList<String>();
+
+    private Result buildResult;
+
+    @Setup
+    public void setUp() {
+        pool = new ParameterParser("vm[1.." + poolSize + "]").getValues();
+        buildValues.clear();
+        if ("functional".equals(hitPattern)) {
+            buildResult = Result.SUCCESS;
+            buildValues.addAll(pool);
+        } else if ("lastFree".equals(hitPattern)) {
+            buildResult = Result.NOT_BUILT;
+            for (int i = 0; i < poolSize - 1; i ++) {
+                buildValues.add(pool.get(i));
+            }
+        }
+    }
+
+    @Benchmark
+    public String addAndSelect() {
+        BuildPoolValues poolValues = new BuildPoolValues(pool);
+        for (String value : buildValues) {
+            poolValues.addPoolValue(buildResult, value);
+        }
+        return poolValues.selectValue(false);
+    }
+
+    @Benchmark
+    public String addAndSelectPreferringErrors() {
+        BuildPoolValues poolValues = new BuildPoolValues(pool);
+        for (String value : buildValues) {
+            poolValues.addPoolValue(buildResult, value);
+        }
+        return poolValues.selectValue(true);
+    }
+}
@@ -0,0 +1,48 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of pool definitions, from a handful of values up to large ranges.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParameterParserBenchmark {
+
+    @Param({"vm1, vm2, vm3", "vm[1..10]", "testVm, vm[1..4], host[1..200]", "port[20000..60000]",
+            "rack[1..4]-vm[01..16], !rack2-vm[01..04]"})
+    public String valuesText;
+
+    private final ParsedPoolCache cache = new ParsedPoolCache(16);
+
+    @Benchmark
+    public PoolValueSet parse() {
+        return new ParameterParser(valuesText).getValues();
+    }
+
+    @Benchmark
+    public PoolValueSet parseCached() {
+        return cache.get(valuesText);
+    }
+
+    @Benchmark
+    public int parseAndFindLastValue() {
+        PoolValueSet values = new ParameterParser(valuesText).getValues();
+        return values.indexOf(values.get(values.getOrdinalCount() - 1));
+    }
+}
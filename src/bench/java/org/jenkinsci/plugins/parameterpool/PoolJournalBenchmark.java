@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restoring a job's history from its journal, which grows with the number of builds the journal holds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PoolJournalBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int buildCount;
+
+    private PoolJournal journal;
+
+    @Setup
+    public void setUp() throws IOException {
+        File file = File.createTempFile("pool", ".journal");
+        journal = new PoolJournal(file);
+        for (int number = 1; number <= buildCount; number ++) {
+            PoolBuildRecord record = new PoolBuildRecord("project", number, number * 1000L);
+            journal.appendStarted(record);
+            journal.appendValue(record, "testValue", "vm" + (number % 200));
+            record.setResult(number % 7 == 0 ? Result.FAILURE : Result.SUCCESS);
+            journal.appendResult(record);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        journal.delete();
+    }
+
+    @Benchmark
+    public Map<Integer, PoolBuildRecord> replay() throws IOException {
+        return journal.read("project");
+    }
+}
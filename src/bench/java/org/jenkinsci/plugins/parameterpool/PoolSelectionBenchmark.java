@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selecting and leasing a value from synthetic build histories spread over several projects.
+ * Each project's history is shaped like the index keeps it, its running builds then its most recent completed
+ * builds, as selection stops once it has checked that many completed builds whatever the length of the history.
+ * The cost of loading longer histories is measured by {@link PoolJournalBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PoolSelectionBenchmark {
+
+    @Param({"1", "10"})
+    public int projectCount;
+
+    /**
+     * Running builds of each project, which selection checks on top of the completed builds.
+     * Each running build holds its own value, so the pool is large enough for every project's running builds.
+     */
+    @Param({"0", "10", "100"})
+    public int runningBuilds;
+
+    private final List<List<PoolBuildRecord>> projectBuilds = new ArrayList<List<PoolBuildRecord>>();
+
+    private PoolValueSet pool;
+
+    private PoolValueSelector selector;
+
+    private PoolLeaseRegistry leaseRegistry;
+
+    private int allocations;
+
+    @Setup
+    public void setUp() {
+        pool = new ParameterParser("vm[1..2000]").getValues();
+        leaseRegistry = new PoolLeaseRegistry();
+        selector = new PoolValueSelector("testValue", pool, false, leaseRegistry);
+
+        projectBuilds.clear();
+        for (int project = 0; project < projectCount; project ++) {
+            projectBuilds.add(new ArrayList<PoolBuildRecord>());
+        }
+        int buildsPerProject = runningBuilds + PoolStateIndex.COMPLETED_BUILDS_KEPT;
+        for (int number = projectCount * buildsPerProject; number > 0; number --) {
+            int project = number % projectCount;
+            List<PoolBuildRecord> builds = projectBuilds.get(project);
+            PoolBuildRecord record = new PoolBuildRecord("project" + project, number, number * 1000L);
+            record.putValue("testValue", pool.get(number % pool.getOrdinalCount()));
+            if (builds.size() >= runningBuilds) {
+                record.setResult(number % 7 == 0 ? Result.FAILURE : Result.SUCCESS);
+            }
+            builds.add(record);
+        }
+    }
+
+    @Benchmark
+    public String allocateAndRelease() {
+        List<Iterator<PoolBuildRecord>> iterators = new ArrayList<Iterator<PoolBuildRecord>>();
+        for (List<PoolBuildRecord> builds : projectBuilds) {
+            iterators.add(builds.iterator());
+        }
+        String owner = "benchmark#" + allocations ++;
+        String value = selector.allocate(owner,
+                new MergingIterator<PoolBuildRecord>(iterators, PoolBuildRecord.NEWEST_FIRST),
+                selector.newTrace());
+        leaseRegistry.releaseAll(owner);
+        return value;
+    }
+}
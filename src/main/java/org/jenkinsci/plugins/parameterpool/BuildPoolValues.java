@@ -2,86 +2,286 @@ package org.jenkinsci.plugins.parameterpool;
 
 import hudson.model.Result;
 
-import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
  * Wrapper for collections of pool values from running, successful and failed builds.
+ * Values are tracked by their ordinal in the pool, so selection is a scan over bit sets rather than
+ * a lookup of every pool value.
+ *
+ * A value with a capacity above 1 stays selectable while fewer builds than its capacity are using it,
+ * values in use by fewer builds are selected first.
  */
 public class BuildPoolValues {
 
-    Set<String> valuesFromRunningBuilds = new LinkedHashSet<String>();
-    Set<String> valuesFromFailedBuilds = new LinkedHashSet<String>();
-    Set<String> valuesFromFunctionalBuilds = new LinkedHashSet<String>();
-    Set<String> allValues = new LinkedHashSet<String>();
+    private static final SelectionStrategy IN_POOL_ORDER = new InPoolOrderStrategy();
+
+    private final PoolValueSet pool;
+
+    final BitSet valuesFromRunningBuilds = new BitSet();
+    final BitSet valuesFromFailedBuilds = new BitSet();
+    final BitSet valuesFromFunctionalBuilds = new BitSet();
+    final BitSet allValues = new BitSet();
+
+    /**
+     * Values used by as many running builds as their capacity.
+     */
+    final BitSet fullValues = new BitSet();
+
+    /**
+     * Running builds using each value, only counted if the pool has values with a capacity above 1.
+     * Builds are counted both from the build records and the leases, the higher count is the value's load
+     * as most builds appear in both.
+     */
+    private final int[] runningBuildCounts;
+
+    private final int[] leaseCounts;
+
+    /**
+     * Values left out of selection whichever builds used them.
+     */
+    final BitSet quarantinedValues = new BitSet();
+
+    /**
+     * Values last used with the affinity key of the selection.
+     */
+    final BitSet affinityValues = new BitSet();
+
+    /**
+     * Values used by builds that are not part of the pool, only kept for the selection trace.
+     */
+    private final Set<String> valuesNotInPool = new LinkedHashSet<String>();
+
+    public BuildPoolValues(PoolValueSet pool) {
+        this.pool = pool;
+        this.runningBuildCounts = pool.hasCapacity() ? new int[pool.getOrdinalCount()] : null;
+        this.leaseCounts = pool.hasCapacity() ? new int[pool.getOrdinalCount()] : null;
+    }
 
     public void addPoolValue(Result buildResult, String poolValue) {
-        allValues.add(poolValue);
+        int ordinal = pool.indexOf(poolValue);
+        if (ordinal == -1) {
+            valuesNotInPool.add(poolValue);
+            return;
+        }
+        allValues.set(ordinal);
         if (buildResult == Result.NOT_BUILT) {
-            valuesFromRunningBuilds.add(poolValue);
-            valuesFromFunctionalBuilds.remove(poolValue);
-            valuesFromFailedBuilds.remove(poolValue);
+            if (runningBuildCounts != null) {
+                runningBuildCounts[ordinal] ++;
+            }
+            addRunning(ordinal);
         } else if (buildResult == Result.SUCCESS || buildResult == Result.UNSTABLE) {
-            if (!valuesFromFailedBuilds.contains(poolValue) && !valuesFromRunningBuilds.contains(poolValue)) {
-                valuesFromFunctionalBuilds.add(poolValue);
+            if (!valuesFromFailedBuilds.get(ordinal) && !valuesFromRunningBuilds.get(ordinal)) {
+                valuesFromFunctionalBuilds.set(ordinal);
             }
         } else {
-            if (!valuesFromFunctionalBuilds.contains(poolValue) && !valuesFromRunningBuilds.contains(poolValue)) {
-                valuesFromFailedBuilds.add(poolValue);
+            if (!valuesFromFunctionalBuilds.get(ordinal) && !valuesFromRunningBuilds.get(ordinal)) {
+                valuesFromFailedBuilds.set(ordinal);
             }
         }
     }
 
-    public String selectValue(Set<String> allowedValues, boolean preferError) {
-        String value;
+    /**
+     * Adds the leases held on a value by owners other than the one selecting.
+     */
+    public void addLeases(String poolValue, int count) {
+        int ordinal = pool.indexOf(poolValue);
+        if (ordinal == -1) {
+            valuesNotInPool.add(poolValue);
+            return;
+        }
+        allValues.set(ordinal);
+        if (leaseCounts != null) {
+            leaseCounts[ordinal] = Math.max(leaseCounts[ordinal], count);
+        }
+        addRunning(ordinal);
+    }
+
+    /**
+     * @return number of running builds using the value of the ordinal
+     */
+    int getLoad(int ordinal) {
+        if (runningBuildCounts == null) {
+            return valuesFromRunningBuilds.get(ordinal) ? 1 : 0;
+        }
+        return Math.max(runningBuildCounts[ordinal], leaseCounts[ordinal]);
+    }
+
+    private void addRunning(int ordinal) {
+        valuesFromRunningBuilds.set(ordinal);
+        valuesFromFunctionalBuilds.clear(ordinal);
+        valuesFromFailedBuilds.clear(ordinal);
+        if (getLoad(ordinal) >= pool.getCapacity(ordinal)) {
+            fullValues.set(ordinal);
+        }
+    }
+
+    /**
+     * Leaves the value out of selection, it still counts as used by the builds that used it.
+     */
+    public void quarantine(String poolValue) {
+        int ordinal = pool.indexOf(poolValue);
+        if (ordinal != -1) {
+            quarantinedValues.set(ordinal);
+        }
+    }
+
+    /**
+     * Prefers the value over values not used by any build, if it is free and its last build didn't fail.
+     */
+    public void addAffinityValue(String poolValue) {
+        int ordinal = pool.indexOf(poolValue);
+        if (ordinal != -1) {
+            affinityValues.set(ordinal);
+        }
+    }
+
+    /**
+     * Selects values in order of preference, values not used by any build, then values from functional builds,
+     * then values from failed builds. Within each group the pool order is used.
+     * @param preferError select values from failed builds before any other values
+     * @return selected value, null if every value is in use by a running build
+     */
+    public String selectValue(boolean preferError) {
+        return selectValue(preferError, IN_POOL_ORDER, null);
+    }
+
+    /**
+     * Selects values in the same order of preference as {@link #selectValue(boolean)},
+     * the strategy chooses the value within each group.
+     * @param context passed to the strategy
+     * @return selected value, null if every value is in use by a running build
+     */
+    public String selectValue(boolean preferError, SelectionStrategy strategy, SelectionContext context) {
+        int ordinal = -1;
         if (preferError) {
-            value = selectValueIn(allowedValues, valuesFromFailedBuilds);
-            if (value != null) {
-                return value;
-            }
+            ordinal = selectFrom(valuesFromFailedBuilds, strategy, context);
+        }
+
+        if (ordinal == -1 && !affinityValues.isEmpty()) {
+            ordinal = selectFrom(warmOrdinals(), strategy, context);
         }
 
-        value = selectValueNotIn(allowedValues, allValues);
+        if (ordinal == -1) {
+            ordinal = selectFrom(unusedOrdinals(), strategy, context);
+        }
 
-        if (value != null) {
-            return value;
+        if (ordinal == -1) {
+            ordinal = selectFrom(valuesFromFunctionalBuilds, strategy, context);
         }
 
-        value = selectValueIn(allowedValues, valuesFromFunctionalBuilds);
+        if (ordinal == -1 && runningBuildCounts != null) {
+            ordinal = selectFrom(leastLoadedOrdinals(), strategy, context);
+        }
 
-        if (value != null) {
-            return value;
+        if (ordinal == -1) {
+            ordinal = selectFrom(valuesFromFailedBuilds, strategy, context);
         }
 
-        value = selectValueIn(allowedValues, valuesFromFailedBuilds);
+        return ordinal == -1 ? null : pool.get(ordinal);
+    }
 
-        return value;
+    /**
+     * Selects the values one at a time in the same order as {@link #selectValue(boolean)},
+     * each selected value is treated as running so it isn't selected again.
+     * @return selected values, null if fewer than the count are free
+     */
+    public List<String> selectValues(boolean preferError, int count) {
+        return selectValues(preferError, count, IN_POOL_ORDER, null);
     }
 
-    private String selectValueNotIn(Set<String> allowedValues, Set<String> values) {
-        for (String allowedValue : allowedValues) {
-            if (!values.contains(allowedValue)) {
-                return allowedValue;
+    /**
+     * Selects the values one at a time in the same order as {@link #selectValue(boolean, SelectionStrategy,
+     * SelectionContext)}, each selected value is treated as running so it isn't selected again.
+     * @return selected values, null if fewer than the count are free
+     */
+    public List<String> selectValues(boolean preferError, int count, SelectionStrategy strategy,
+                                     SelectionContext context) {
+        List<String> selectedValues = new ArrayList<String>(count);
+        while (selectedValues.size() < count) {
+            String value = selectValue(preferError, strategy, context);
+            if (value == null) {
+                return null;
             }
+            selectedValues.add(value);
+            // a value is never selected twice for the same build, whatever its capacity
+            fullValues.set(pool.indexOf(value));
+            addPoolValue(Result.NOT_BUILT, value);
         }
-        return null;
+        return selectedValues;
     }
 
+    private int selectFrom(BitSet candidates, SelectionStrategy strategy, SelectionContext context) {
+        if (!quarantinedValues.isEmpty()) {
+            candidates = (BitSet) candidates.clone();
+            candidates.andNot(quarantinedValues);
+        }
+        return candidates.isEmpty() ? -1 : strategy.select(candidates, context);
+    }
+
+    private BitSet warmOrdinals() {
+        BitSet warmOrdinals = (BitSet) affinityValues.clone();
+        warmOrdinals.andNot(fullValues);
+        warmOrdinals.andNot(valuesFromFailedBuilds);
+        return warmOrdinals;
+    }
 
-    private String selectValueIn(Set<String> allowedValues, Set<String> values) {
-        for (String allowedValue : allowedValues) {
-            if (values.contains(allowedValue)) {
-                return allowedValue;
+    /**
+     * @return values in use by running builds but below their capacity, that are used by the fewest builds
+     */
+    private BitSet leastLoadedOrdinals() {
+        BitSet partlyUsedOrdinals = (BitSet) valuesFromRunningBuilds.clone();
+        partlyUsedOrdinals.andNot(fullValues);
+        partlyUsedOrdinals.andNot(quarantinedValues);
+        BitSet leastLoadedOrdinals = new BitSet();
+        int leastLoad = Integer.MAX_VALUE;
+        for (int ordinal = partlyUsedOrdinals.nextSetBit(0); ordinal >= 0;
+             ordinal = partlyUsedOrdinals.nextSetBit(ordinal + 1)) {
+            int load = getLoad(ordinal);
+            if (load < leastLoad) {
+                leastLoad = load;
+                leastLoadedOrdinals.clear();
+            }
+            if (load == leastLoad) {
+                leastLoadedOrdinals.set(ordinal);
             }
         }
-        return null;
+        return leastLoadedOrdinals;
     }
 
+    private BitSet unusedOrdinals() {
+        BitSet unusedOrdinals = new BitSet(pool.getOrdinalCount());
+        unusedOrdinals.set(0, pool.getOrdinalCount());
+        unusedOrdinals.andNot(allValues);
+        pool.removeExcluded(unusedOrdinals);
+        if (pool.mayContainDuplicates()) {
+            // repeated values in the pool have their bit set at the ordinal of their first occurrence
+            for (int ordinal = unusedOrdinals.nextSetBit(0); ordinal >= 0;
+                 ordinal = unusedOrdinals.nextSetBit(ordinal + 1)) {
+                if (!pool.isFirstOccurrence(ordinal)) {
+                    unusedOrdinals.clear(ordinal);
+                }
+            }
+        }
+        return unusedOrdinals;
+    }
 
-    public void printValues(PrintStream logger) {
-        logger.println("Parsed following pool values from running builds " + valuesFromRunningBuilds.toString());
-        logger.println("Parsed following pool values from functional builds " + valuesFromFunctionalBuilds.toString());
-        logger.println("Parsed following pool values from non functional builds " + valuesFromFailedBuilds.toString());
+    public void recordValues(PoolSelectionTrace trace) {
+        trace.setPoolValues(valuesFor(valuesFromRunningBuilds), valuesFor(valuesFromFunctionalBuilds),
+                valuesFor(valuesFromFailedBuilds), new ArrayList<String>(valuesNotInPool));
+        trace.setQuarantinedValues(valuesFor(quarantinedValues));
+        trace.setAffinityValues(valuesFor(affinityValues));
+    }
+
+    private List<String> valuesFor(BitSet ordinals) {
+        List<String> values = new ArrayList<String>(ordinals.cardinality());
+        for (int ordinal = ordinals.nextSetBit(0); ordinal >= 0; ordinal = ordinals.nextSetBit(ordinal + 1)) {
+            values.add(pool.get(ordinal));
+        }
+        return values;
     }
 }
@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Pool defined once in the global configuration and used by any number of jobs.
+ * The name is both the id jobs refer to the pool by and the environment variable set to the selected value,
+ * so every job using the pool shares the same pool state.
+ */
+public class GlobalPoolDefinition extends AbstractDescribableImpl<GlobalPoolDefinition> {
+
+    private final String name;
+
+    private final String values;
+
+    private final String projects;
+
+    @DataBoundConstructor
+    public GlobalPoolDefinition(String name, String values, String projects) {
+        this.name = Util.fixEmptyAndTrim(name);
+        this.values = values;
+        this.projects = Util.fixEmptyAndTrim(projects);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getValues() {
+        return values;
+    }
+
+    /**
+     * @return comma separated names of the jobs sharing the pool, null to use every job with a step using the pool
+     */
+    public String getProjects() {
+        return projects;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<GlobalPoolDefinition> {
+
+        public FormValidation doCheckName(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error("Please set a pool name");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckValues(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error("Please set pool values");
+            }
+            // paths with variables are only known once a build expands them
+            if (PoolFileSource.isFileSource(value) && value.indexOf('$') == -1
+                    && Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER)
+                    && !PoolFileSource.fileOf(value).isFile()) {
+                return FormValidation.warning("No file at " + PoolFileSource.fileOf(value));
+            }
+            if (!PoolFileSource.isFileSource(value) && value.indexOf('$') == -1) {
+                try {
+                    new ParameterParser(value);
+                } catch (IllegalArgumentException e) {
+                    return FormValidation.error(e.getMessage());
+                }
+            }
+            return FormValidation.ok();
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Parameter Pool";
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram with fixed bucket upper bounds, the last bucket counts everything above the highest bound.
+ */
+@ExportedBean
+public class Histogram {
+
+    private final long[] upperBounds;
+
+    private final AtomicLongArray counts;
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    public Histogram(long... upperBounds) {
+        this.upperBounds = upperBounds.clone();
+        this.counts = new AtomicLongArray(upperBounds.length + 1);
+    }
+
+    public void record(long sample) {
+        int bucket = 0;
+        while (bucket < upperBounds.length && sample > upperBounds[bucket]) {
+            bucket ++;
+        }
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(sample);
+    }
+
+    /**
+     * @return inclusive upper bound of each bucket, excluding the last bucket which has no bound
+     */
+    @Exported
+    public long[] getUpperBounds() {
+        return upperBounds.clone();
+    }
+
+    @Exported
+    public long[] getCounts() {
+        long[] bucketCounts = new long[counts.length()];
+        for (int i = 0; i < bucketCounts.length; i ++) {
+            bucketCounts[i] = counts.get(i);
+        }
+        return bucketCounts;
+    }
+
+    @Exported
+    public long getCount() {
+        return count.get();
+    }
+
+    @Exported
+    public long getMean() {
+        long samples = count.get();
+        return samples == 0 ? 0 : total.get() / samples;
+    }
+}
@@ -0,0 +1,42 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Keeps leases in memory, only builds of this controller are coordinated.
+ */
+public class InMemoryLeaseStore extends LeaseStore {
+
+    private final ConcurrentMap<String, PoolLeases> pools = new ConcurrentHashMap<String, PoolLeases>();
+
+    @Override
+    public <T> T update(String poolName, PoolStatistics statistics, PoolLeaseRegistry.LeaseUpdate<T> update) {
+        Lock lock = lockFor(poolName);
+        lock.lock();
+        try {
+            return update.apply(leasesFor(poolName, statistics));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Set<String> getPoolNames() {
+        return new HashSet<String>(pools.keySet());
+    }
+
+    private PoolLeases leasesFor(String poolName, PoolStatistics statistics) {
+        PoolLeases leases = pools.get(poolName);
+        if (leases != null) {
+            leases.setStatistics(statistics);
+            return leases;
+        }
+        PoolLeases newLeases = new PoolLeases(poolName, statistics);
+        leases = pools.putIfAbsent(poolName, newLeases);
+        return leases != null ? leases : newLeases;
+    }
+}
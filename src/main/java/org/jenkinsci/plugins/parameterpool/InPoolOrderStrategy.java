@@ -0,0 +1,30 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.BitSet;
+
+/**
+ * Selects the first free value in the order the pool was defined, the original behaviour.
+ */
+public class InPoolOrderStrategy extends SelectionStrategy {
+
+    @DataBoundConstructor
+    public InPoolOrderStrategy() {
+    }
+
+    @Override
+    public int select(BitSet candidates, SelectionContext context) {
+        return candidates.nextSetBit(0);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<SelectionStrategy> {
+        @Override
+        public String getDisplayName() {
+            return "First free value in pool order";
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import jenkins.model.Jenkins;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Controller wide instance that is created again whenever Jenkins is, so that its state never outlives the
+ * Jenkins instance it was built for, e.g. when tests start Jenkins several times in the same JVM.
+ */
+abstract class JenkinsScoped<T> {
+
+    private volatile Scope<T> scope;
+
+    /**
+     * @param jenkins the running Jenkins, null if Jenkins isn't running
+     */
+    protected abstract T create(Jenkins jenkins);
+
+    T get() {
+        Jenkins jenkins = Jenkins.getInstance();
+        Scope<T> currentScope = scope;
+        if (currentScope != null && currentScope.jenkins.get() == jenkins) {
+            return currentScope.instance;
+        }
+        synchronized (this) {
+            currentScope = scope;
+            if (currentScope == null || currentScope.jenkins.get() != jenkins) {
+                currentScope = new Scope<T>(jenkins, create(jenkins));
+                scope = currentScope;
+            }
+            return currentScope.instance;
+        }
+    }
+
+    private static final class Scope<T> {
+
+        private final WeakReference<Jenkins> jenkins;
+
+        private final T instance;
+
+        private Scope(Jenkins jenkins, T instance) {
+            this.jenkins = new WeakReference<Jenkins>(jenkins);
+            this.instance = instance;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.listeners.ItemListener;
+import jenkins.model.Jenkins;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Sorted index of the full names of all jobs, so that jobs matching a name prefix can be found
+ * without checking every item in Jenkins.
+ * Loaded on first use and then kept up to date by {@link Updater} as jobs are created, renamed and deleted.
+ */
+public class JobNameIndex {
+
+    private static final JenkinsScoped<JobNameIndex> INSTANCE = new JenkinsScoped<JobNameIndex>() {
+        @Override
+        protected JobNameIndex create(Jenkins jenkins) {
+            return new JobNameIndex();
+        }
+    };
+
+    private final NavigableSet<String> fullNames = new ConcurrentSkipListSet<String>();
+
+    private volatile boolean loaded;
+
+    public static JobNameIndex getInstance() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * @return full names of the jobs starting with the prefix, in sorted order
+     */
+    public SortedSet<String> withPrefix(String prefix) {
+        loadIfNeeded();
+        return Collections.unmodifiableSortedSet(fullNames.subSet(prefix, true, prefix + Character.MAX_VALUE, true));
+    }
+
+    /**
+     * @return the full name sharing the longest prefix with the name, null if there are no jobs
+     */
+    public String nearest(String fullName) {
+        loadIfNeeded();
+        String higher = fullNames.ceiling(fullName);
+        String lower = fullNames.lower(fullName);
+        if (higher == null || lower == null) {
+            return higher != null ? higher : lower;
+        }
+        return commonPrefixLength(fullName, lower) > commonPrefixLength(fullName, higher) ? lower : higher;
+    }
+
+    public boolean contains(String fullName) {
+        loadIfNeeded();
+        return fullNames.contains(fullName);
+    }
+
+    synchronized void add(String fullName) {
+        if (loaded) {
+            fullNames.add(fullName);
+        }
+    }
+
+    /**
+     * Removes the name and any names nested under it, as deleting a folder deletes the jobs in it.
+     */
+    synchronized void remove(String fullName) {
+        fullNames.remove(fullName);
+        fullNames.subSet(fullName + "/", true, fullName + "/" + Character.MAX_VALUE, true).clear();
+    }
+
+    /**
+     * Replaces the index with the names, marking it as loaded.
+     */
+    synchronized void load(Collection<String> names) {
+        fullNames.clear();
+        fullNames.addAll(names);
+        loaded = true;
+    }
+
+    /**
+     * Drops the index, it is loaded again from Jenkins when next used.
+     */
+    synchronized void reset() {
+        loaded = false;
+        fullNames.clear();
+    }
+
+    private void loadIfNeeded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!loaded) {
+                NavigableSet<String> names = new ConcurrentSkipListSet<String>();
+                for (Job<?, ?> job : Jenkins.getInstance().getAllItems(Job.class)) {
+                    names.add(job.getFullName());
+                }
+                load(names);
+            }
+        }
+    }
+
+    private static int commonPrefixLength(String first, String second) {
+        int length = 0;
+        while (length < first.length() && length < second.length()
+                && first.charAt(length) == second.charAt(length)) {
+            length ++;
+        }
+        return length;
+    }
+
+    /**
+     * Keeps the index up to date as jobs change.
+     */
+    @Extension
+    public static class Updater extends ItemListener {
+
+        @Override
+        public void onLoaded() {
+            getInstance().reset();
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            if (item instanceof Job) {
+                getInstance().add(item.getFullName());
+            }
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            onCreated(item);
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (item instanceof Job) {
+                getInstance().remove(oldFullName);
+                getInstance().add(newFullName);
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            getInstance().remove(item.getFullName());
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Storage for the leases of each pool, used by {@link PoolLeaseRegistry}.
+ * Implementations decide where leases are kept and how updates of a pool are made exclusive,
+ * e.g. in memory for a single controller or in a shared directory for several controllers using the same pools.
+ */
+public abstract class LeaseStore {
+
+    private static final int LOCK_STRIPES = 32;
+
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
+
+    protected LeaseStore() {
+        for (int i = 0; i < locks.length; i ++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Runs the update with the pool's leases. No other update of the pool, by this or any other controller sharing
+     * the store, may run at the same time, and any changes the update makes must be visible to later updates.
+     * @param statistics statistics to record lease changes in
+     */
+    public abstract <T> T update(String poolName, PoolStatistics statistics, PoolLeaseRegistry.LeaseUpdate<T> update);
+
+    /**
+     * @return names of the pools that may have leases
+     */
+    public abstract Set<String> getPoolNames();
+
+    /**
+     * @return lock that excludes updates of the pool by other threads of this controller
+     */
+    protected Lock lockFor(String poolName) {
+        int hash = poolName.hashCode();
+        hash ^= (hash >>> 16);
+        return locks[(hash & 0x7fffffff) % locks.length];
+    }
+}
@@ -0,0 +1,43 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.BitSet;
+
+/**
+ * Selects the free value that was released longest ago, values that haven't been released since Jenkins started
+ * are selected first, in pool order.
+ */
+public class LeastRecentlyUsedStrategy extends SelectionStrategy {
+
+    @DataBoundConstructor
+    public LeastRecentlyUsedStrategy() {
+    }
+
+    @Override
+    public int select(BitSet candidates, SelectionContext context) {
+        PoolValueSet pool = context.getPool();
+        for (int ordinal = candidates.nextSetBit(0); ordinal >= 0; ordinal = candidates.nextSetBit(ordinal + 1)) {
+            if (!context.hasBeenReleased(pool.get(ordinal))) {
+                return ordinal;
+            }
+        }
+        for (String value : context.getValuesInReleaseOrder()) {
+            int ordinal = pool.indexOf(value);
+            if (ordinal >= 0 && candidates.get(ordinal)) {
+                return ordinal;
+            }
+        }
+        return candidates.nextSetBit(0);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<SelectionStrategy> {
+        @Override
+        public String getDisplayName() {
+            return "Least recently used value";
+        }
+    }
+}
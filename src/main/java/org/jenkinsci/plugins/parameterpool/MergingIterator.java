@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Lazily merges iterators that are each already sorted by the same comparator.
+ * Only the head element of each iterator is held, so taking k elements from p iterators costs O(k log p)
+ * and elements past the last one taken are never read.
+ */
+public class MergingIterator<T> implements Iterator<T> {
+
+    private final PriorityQueue<Source<T>> sources;
+
+    public MergingIterator(List<? extends Iterator<? extends T>> iterators, final Comparator<? super T> comparator) {
+        this.sources = new PriorityQueue<Source<T>>(Math.max(1, iterators.size()), new Comparator<Source<T>>() {
+            public int compare(Source<T> firstSource, Source<T> secondSource) {
+                return comparator.compare(firstSource.head, secondSource.head);
+            }
+        });
+        for (Iterator<? extends T> iterator : iterators) {
+            if (iterator.hasNext()) {
+                sources.add(new Source<T>(iterator));
+            }
+        }
+    }
+
+    public boolean hasNext() {
+        return !sources.isEmpty();
+    }
+
+    public T next() {
+        Source<T> source = sources.poll();
+        if (source == null) {
+            throw new NoSuchElementException();
+        }
+        T element = source.head;
+        if (source.advance()) {
+            sources.add(source);
+        }
+        return element;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Merged elements can't be removed");
+    }
+
+    private static class Source<T> {
+
+        private final Iterator<? extends T> iterator;
+
+        private T head;
+
+        private Source(Iterator<? extends T> iterator) {
+            this.iterator = iterator;
+            this.head = iterator.next();
+        }
+
+        private boolean advance() {
+            if (!iterator.hasNext()) {
+                head = null;
+                return false;
+            }
+            head = iterator.next();
+            return true;
+        }
+    }
+}
@@ -1,56 +1,230 @@
 package org.jenkinsci.plugins.parameterpool;
 
-import java.util.HashSet;
-import java.util.LinkedHashSet;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
+ * Compiles pool values text into a {@link PoolValueSet}.
  *
+ * The text is a comma separated list of entries. An entry is plain text with any number of numeric ranges:
+ * vm[1..4] for vm1 to vm4, vm[01..16] for zero padded numbers, vm[0..20:5] to step by 5, and
+ * rack[1..4]-vm[01..16] for every combination of the ranges. A capacity can follow the last range, e.g. bighost[1..3]x4,
+ * or a single value in brackets, e.g. [bighost]x4. An entry starting with ! excludes its values from the pool.
+ * Brackets that don't hold a range are kept as part of the value.
+ *
+ * The text is read in a single pass without regular expressions, so the time taken is linear in its length.
  */
 public class ParameterParser {
 
-    private final Matcher rangeMatcher = Pattern.compile("(.+)\\[(\\d+)\\.\\.(\\d+)\\](.*)").matcher("");
+    private final List<PoolValueSet.Segment> segments = new ArrayList<PoolValueSet.Segment>();
+
+    private final List<PoolValueSet.Segment> exclusions = new ArrayList<PoolValueSet.Segment>();
 
-    private Set<String> values = new LinkedHashSet<String>();
+    private final PoolValueSet values;
 
+    /**
+     * @throws IllegalArgumentException if a range is invalid, e.g. has a step of 0 or numbers too large for a value
+     */
     public ParameterParser(String sourceText) {
         parseValues(sourceText == null ? "" : sourceText);
+        values = new PoolValueSet(segments, exclusions);
     }
 
     private void parseValues(String sourceText) {
-        String[] pieces = sourceText.split(",");
-        for (String piece : pieces) {
-            piece = piece.trim();
-            rangeMatcher.reset(piece);
-            if (!rangeMatcher.find()) {
-                values.add(piece);
-                continue;
+        int entryStart = 0;
+        for (int i = 0; i <= sourceText.length(); i ++) {
+            if (i == sourceText.length() || sourceText.charAt(i) == ',') {
+                parseEntry(sourceText, entryStart, i);
+                entryStart = i + 1;
             }
-
-            addValuesForPattern();
         }
     }
 
-    private void addValuesForPattern() {
-        String prefix = rangeMatcher.group(1);
-        int start = Integer.parseInt(rangeMatcher.group(2));
-        int end = Integer.parseInt(rangeMatcher.group(3));
-        String suffix = rangeMatcher.group(4);
+    private void parseEntry(String text, int start, int end) {
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start ++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end --;
+        }
+        if (start == end) {
+            return;
+        }
+        boolean exclusion = text.charAt(start) == '!';
+        if (exclusion) {
+            start ++;
+            while (start < end && Character.isWhitespace(text.charAt(start))) {
+                start ++;
+            }
+            if (start == end) {
+                throw new IllegalArgumentException("No values to exclude after ! in " + text);
+            }
+        }
+
+        int capacity = 1;
+        int capacityStart = capacityStart(text, start, end);
+        int patternEnd = end;
+        if (capacityStart != -1) {
+            capacity = parseNumber(text, capacityStart + 1, end);
+            patternEnd = capacityStart;
+        }
 
-        if (start > end) {
-            for (int i = start; i >= end; i --) {
-                values.add(prefix + i + suffix);
+        List<String> literals = new ArrayList<String>();
+        List<PoolValueSet.NumberRange> ranges = new ArrayList<PoolValueSet.NumberRange>();
+        StringBuilder literal = new StringBuilder();
+        int i = start;
+        while (i < patternEnd) {
+            char character = text.charAt(i);
+            if (character == '[') {
+                int groupEnd = groupEnd(text, i + 1, patternEnd);
+                PoolValueSet.NumberRange range = groupEnd == -1 ? null : parseRange(text, i + 1, groupEnd);
+                if (range != null) {
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    ranges.add(range);
+                    i = groupEnd + 1;
+                    continue;
+                }
             }
+            literal.append(character);
+            i ++;
+        }
+        literals.add(literal.toString());
+
+        PoolValueSet.Segment segment;
+        if (!ranges.isEmpty()) {
+            segment = new PoolValueSet.Range(literals, ranges, capacity);
+        } else if (capacityStart != -1 && text.charAt(start) == '['
+                && groupEnd(text, start + 1, patternEnd) == patternEnd - 1) {
+            segment = new PoolValueSet.SingleValue(text.substring(start + 1, patternEnd - 1).trim(), capacity);
+        } else {
+            // text such as vm[a]x4 only has a capacity after a range or a bracketed value
+            segment = new PoolValueSet.SingleValue(text.substring(start, end));
+        }
+
+        if (!exclusion) {
+            segments.add(segment);
+        } else if (segment.capacity > 1) {
+            throw new IllegalArgumentException("Excluded values can't have a capacity: " + text.substring(start, end));
         } else {
-            for (int i = start; i <= end; i ++) {
-                values.add(prefix + i + suffix);
+            exclusions.add(segment);
+        }
+    }
+
+    /**
+     * @return index of the x of a capacity such as x4 ending the entry straight after a closing bracket, else -1
+     */
+    private static int capacityStart(String text, int start, int end) {
+        int digitsStart = end;
+        while (digitsStart > start && isDigit(text.charAt(digitsStart - 1))) {
+            digitsStart --;
+        }
+        int capacityStart = digitsStart - 1;
+        if (digitsStart == end || capacityStart - 1 < start
+                || text.charAt(capacityStart) != 'x' || text.charAt(capacityStart - 1) != ']') {
+            return -1;
+        }
+        return capacityStart;
+    }
+
+    /**
+     * Finds the closing bracket of a group, stopping at an opening bracket so no text is scanned twice
+     * for the same group.
+     * @return index of the closing bracket, -1 if the group isn't closed before the end or another group
+     */
+    private static int groupEnd(String text, int start, int end) {
+        for (int i = start; i < end; i ++) {
+            char character = text.charAt(i);
+            if (character == ']') {
+                return i;
+            }
+            if (character == '[') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return range for text such as 1..4, 01..16 or 0..20:5, null if the text isn't a range
+     * @throws IllegalArgumentException if a zero padded range has numbers of different widths, e.g. 01..100
+     */
+    private static PoolValueSet.NumberRange parseRange(String text, int start, int end) {
+        int startEnd = digitsEnd(text, start, end);
+        if (startEnd == start || !text.startsWith("..", startEnd)) {
+            return null;
+        }
+        int endStart = startEnd + 2;
+        int endEnd = digitsEnd(text, endStart, end);
+        if (endEnd == endStart) {
+            return null;
+        }
+        int step = 1;
+        if (endEnd < end) {
+            int stepEnd = digitsEnd(text, endEnd + 1, end);
+            if (text.charAt(endEnd) != ':' || stepEnd == endEnd + 1 || stepEnd != end) {
+                return null;
+            }
+            step = parseNumber(text, endEnd + 1, end);
+        }
+        int width = 0;
+        if (isZeroPadded(text, start, startEnd) || isZeroPadded(text, endStart, endEnd)) {
+            // guessing a width from bounds such as 01..100 surprises either way, so both must have the same width
+            if (startEnd - start != endEnd - endStart) {
+                int widest = Math.max(startEnd - start, endEnd - endStart);
+                throw new IllegalArgumentException("Zero padded range " + text.substring(start, endEnd)
+                        + " needs both numbers written with the same number of digits, e.g. "
+                        + padded(text, start, startEnd, widest) + ".." + padded(text, endStart, endEnd, widest));
+            }
+            width = startEnd - start;
+        }
+        return new PoolValueSet.NumberRange(parseNumber(text, start, startEnd), parseNumber(text, endStart, endEnd),
+                step, width);
+    }
+
+    private static boolean isZeroPadded(String text, int start, int end) {
+        return end - start > 1 && text.charAt(start) == '0';
+    }
+
+    /**
+     * @return number with its leading zeros replaced so that it has the width
+     */
+    private static String padded(String text, int start, int end, int width) {
+        String number = String.valueOf(parseNumber(text, start, end));
+        StringBuilder padded = new StringBuilder(width);
+        for (int i = number.length(); i < width; i ++) {
+            padded.append('0');
+        }
+        return padded.append(number).toString();
+    }
+
+    private static int digitsEnd(String text, int start, int end) {
+        int i = start;
+        while (i < end && isDigit(text.charAt(i))) {
+            i ++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(char character) {
+        return character >= '0' && character <= '9';
+    }
+
+    private static int parseNumber(String text, int start, int end) {
+        long number = 0;
+        for (int i = start; i < end; i ++) {
+            number = number * 10 + (text.charAt(i) - '0');
+            if (number > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Number " + text.substring(start, end) + " is too large");
             }
         }
+        return (int) number;
     }
 
-    public Set<String> getValues() {
+    /**
+     * @return values in the order they were defined, ranges are generated lazily
+     */
+    public PoolValueSet getValues() {
         return values;
     }
 
@@ -7,10 +7,16 @@ import hudson.model.AutoCompletionCandidates;
 import hudson.model.EnvironmentContributingAction;
 import hudson.model.Item;
 import hudson.model.ItemGroup;
+import hudson.model.Items;
 import hudson.model.Job;
-import hudson.model.Result;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
 import hudson.model.Run;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.CauseOfBlockage;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.AbstractProject;
@@ -20,6 +26,7 @@ import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.QueryParameter;
 
@@ -27,14 +34,14 @@ import javax.servlet.ServletException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.logging.Logger;
 
 /**
  * Sample {@link Builder}.
@@ -55,6 +62,8 @@ import java.util.StringTokenizer;
  */
 public class ParameterPoolBuilder extends Builder {
 
+    private static final Logger LOGGER = Logger.getLogger(ParameterPoolBuilder.class.getName());
+
     private final String projects;
 
     private final String name;
@@ -63,6 +72,16 @@ public class ParameterPoolBuilder extends Builder {
 
     private final boolean preferError;
 
+    private boolean waitInQueue;
+
+    private int count = 1;
+
+    private SelectionStrategy selectionStrategy;
+
+    private String globalPool;
+
+    private String affinityKey;
+
     // Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
     @DataBoundConstructor
     public ParameterPoolBuilder(String projects, String name, String values, boolean preferError) {
@@ -88,111 +107,257 @@ public class ParameterPoolBuilder extends Builder {
         return preferError;
     }
 
-    @Override
-    public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException,
-            InterruptedException {
+    public boolean isWaitInQueue() {
+        return waitInQueue;
+    }
 
-        List<AbstractProject> projectsToUse = new ArrayList<AbstractProject>();
-        if (StringUtils.isBlank(projects)) {
-            projectsToUse.add(build.getProject());
-        } else {
-            for (String potentialName : projects.split(",")) {
-                AbstractProject matchingProject = AbstractProject.findNearest(potentialName);
-                if (matchingProject == null) {
-                    throw new IllegalArgumentException("Project name " + potentialName + " was not found!");
-                }
-                projectsToUse.add(matchingProject);
-            }
-        }
+    @DataBoundSetter
+    public void setWaitInQueue(boolean waitInQueue) {
+        this.waitInQueue = waitInQueue;
+    }
 
+    /**
+     * @return number of values to select from the pool
+     */
+    public int getCount() {
+        // builders saved before the count was added have no value for it
+        return count < 1 ? 1 : count;
+    }
 
-        List<Run> builds = new ArrayList<Run>();
-        for (AbstractProject project : projectsToUse) {
-            builds.addAll(project.getBuilds());
-        }
+    @DataBoundSetter
+    public void setCount(int count) {
+        this.count = count;
+    }
 
-        Collections.sort(builds, new Comparator<Run>() {
-            @Override
-            public int compare(Run firstRun, Run secondRun) {
-                return new Long(secondRun.getStartTimeInMillis()).compareTo(firstRun.getStartTimeInMillis());
-            }
-        });
+    /**
+     * @return strategy for choosing between free values, in pool order if none was set
+     */
+    public SelectionStrategy getSelectionStrategy() {
+        return selectionStrategy != null ? selectionStrategy : new InPoolOrderStrategy();
+    }
+
+    @DataBoundSetter
+    public void setSelectionStrategy(SelectionStrategy selectionStrategy) {
+        this.selectionStrategy = selectionStrategy;
+    }
+
+    /**
+     * @return name of the pool in the global configuration to use instead of this builder's values, null if none
+     */
+    public String getGlobalPool() {
+        return globalPool;
+    }
+
+    @DataBoundSetter
+    public void setGlobalPool(String globalPool) {
+        this.globalPool = Util.fixEmptyAndTrim(globalPool);
+    }
+
+    /**
+     * @return key whose builds should reuse the value they last used, null if none
+     */
+    public String getAffinityKey() {
+        return affinityKey;
+    }
+
+    @DataBoundSetter
+    public void setAffinityKey(String affinityKey) {
+        this.affinityKey = Util.fixEmptyAndTrim(affinityKey);
+    }
+
+    @Override
+    public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException,
+            InterruptedException {
+
+        GlobalPoolDefinition definition = findGlobalPool();
+        List<Job<?, ?>> projectsToUse = projectsToUse(definition, build.getProject());
 
         PrintStream logger = listener.getLogger();
         EnvVars env = build.getEnvironment(listener);
 
-        String expandedName = env.expand(name);
-        String expandedValues = env.expand(values);
+        String expandedName = env.expand(poolName(definition));
+        String expandedValues = env.expand(poolValues(definition));
 
-        ParameterParser parameterParser = new ParameterParser(expandedValues);
+        PoolValueSet allowedValues = parsePool(definition, expandedValues);
 
-        if (parameterParser.getValues().isEmpty()) {
+        if (allowedValues.isEmpty()) {
             throw new IllegalArgumentException("No values set for name " + expandedName);
         }
 
-        logger.println("Parsed following values from input text " + expandedValues);
-        logger.println(parameterParser.valuesAsText());
+        LOGGER.fine(allowedValues.size() + " values in pool " + expandedName + " for " + build);
 
+        PoolValueSelector selector = new PoolValueSelector(expandedName, allowedValues, preferError,
+                getSelectionStrategy());
+        selector.setQuarantinePolicy(ParameterPoolConfiguration.get().getQuarantinePolicy());
+        selector.setAffinityKey(Util.fixEmptyAndTrim(env.expand(affinityKey)));
+        String owner = build.getExternalizableId();
 
-        String selectedPoolValue = selectPoolValue(build.getNumber(), builds, logger,
-                parameterParser.getValues());
+        String selectedPoolValue = null;
+        if (waitInQueue) {
+            selectedPoolValue = claimReservedValue(build, selector, owner, logger);
+        }
+        if (selectedPoolValue == null) {
+            PoolSelectionTrace trace = selector.newTrace();
+            try {
+                selectedPoolValue = PoolValueSelector.joinValues(selector.allocate(owner,
+                        PoolValueSelector.recordsFor(projectsToUse), getCount(), trace));
+            } finally {
+                logger.println(trace.getSummary());
+                PoolSelectionTraceAction.addTo(build, trace);
+            }
+        }
 
-        logger.println("Adding " + expandedName + " as environment variable with value of " + selectedPoolValue);
+        LOGGER.fine("Adding " + expandedName + " as environment variable with value of " + selectedPoolValue
+                + " to " + build);
 
         ParameterEnvAction envAction = new ParameterEnvAction();
         envAction.add(expandedName, selectedPoolValue);
 
         build.addAction(envAction);
+        PoolStateIndex.getInstance().recordValue(build, expandedName, selectedPoolValue);
 
         return true;
     }
 
-    private String selectPoolValue(int currentBuildNumber, List<Run> builds, PrintStream logger,
-                                   Set<String> allowedValues) {
-        BuildPoolValues poolValues = new BuildPoolValues();
-        int completedBuildsChecked = 0;
-        for (Run build : builds) {
-            int buildNumber = build.getNumber();
-            if (buildNumber == currentBuildNumber) {
-                continue;
+    /**
+     * Reserves a value for a queue item so that it can start, called by {@link PoolQueueTaskDispatcher}.
+     * Only build parameters are available for expanding the name and values while the item is queued.
+     * @return the reason the item should wait, null if a value has been reserved
+     */
+    CauseOfBlockage reserve(Queue.Item item) {
+        GlobalPoolDefinition definition;
+        try {
+            definition = findGlobalPool();
+        } catch (IllegalArgumentException e) {
+            // let the build start and fail with the same error
+            return null;
+        }
+        Map<String, String> parameters = new HashMap<String, String>();
+        ParametersAction parametersAction = item.getAction(ParametersAction.class);
+        if (parametersAction != null) {
+            for (ParameterValue parameter : parametersAction.getParameters()) {
+                if (parameter instanceof StringParameterValue) {
+                    parameters.put(parameter.getName(), ((StringParameterValue) parameter).value);
+                }
             }
+        }
+        String expandedName = Util.replaceMacro(poolName(definition), parameters);
 
-            // there could be running builds further before completed builds
-            if (completedBuildsChecked > 20) {
-                break;
-            }
-            Result result = build.isBuilding() ? Result.NOT_BUILT : build.getResult();
-            if (result != Result.NOT_BUILT) {
-                completedBuildsChecked ++;
-            }
+        PoolReservationAction reservation = item.getAction(PoolReservationAction.class);
+        if (reservation != null && reservation.get(expandedName) != null) {
+            return null;
+        }
 
-            String poolValue = null;
-            ParameterEnvAction parameterEnvAction = build.getAction(ParameterEnvAction.class);
-            if (parameterEnvAction != null) {
-                poolValue = parameterEnvAction.getValue(name);
-            }
+        PoolValueSet allowedValues;
+        List<Job<?, ?>> projectsToUse;
+        try {
+            allowedValues = parsePool(definition, Util.replaceMacro(poolValues(definition), parameters));
+            projectsToUse = projectsToUse(definition, (Job<?, ?>) item.task);
+        } catch (IllegalArgumentException e) {
+            // let the build start and fail with the same error
+            return null;
+        }
+        if (allowedValues.isEmpty() || getCount() > allowedValues.size()) {
+            return null;
+        }
+        // the queue is locked, so histories that aren't loaded yet are read from disk on another thread
+        if (!PoolStateIndex.getInstance().loadInBackground(projectsToUse)) {
+            return new PoolQueueTaskDispatcher.PoolHistoryLoading(expandedName);
+        }
 
-            logger.println("Build number " + buildNumber + ", param value: " + poolValue + ", result: " + result.toString());
-            if (parameterEnvAction == null) {
-                logger.println("No " + ParameterEnvAction.class.getSimpleName() + " found for build " + buildNumber);
-                continue;
-            }
+        String owner = PoolReservationAction.ownerFor(item);
+        if (reservation == null) {
+            reservation = new PoolReservationAction(owner);
+            item.addAction(reservation);
+        }
+        String value;
+        try {
+            PoolValueSelector selector = new PoolValueSelector(expandedName, allowedValues, preferError,
+                    getSelectionStrategy());
+            selector.setQuarantinePolicy(ParameterPoolConfiguration.get().getQuarantinePolicy());
+            selector.setAffinityKey(Util.fixEmptyAndTrim(Util.replaceMacro(affinityKey, parameters)));
+            // the queue checks a waiting item again on every maintenance pass, it only counts as waiting once
+            selector.setRecordExhaustion(!reservation.isExhausted(expandedName));
+            value = PoolValueSelector.joinValues(selector.allocate(owner, PoolValueSelector.recordsFor(projectsToUse),
+                    getCount(), selector.newTrace()));
+        } catch (IllegalArgumentException e) {
+            reservation.markExhausted(expandedName);
+            return new PoolQueueTaskDispatcher.PoolExhausted(expandedName);
+        }
+        reservation.put(expandedName, value);
+        return null;
+    }
 
-            if (poolValue == null) {
-                logger.println("No value named " + name + " added in build " + buildNumber);
-                logger.println("Pool parameters in build: " + parameterEnvAction.getNames().toString());
-                continue;
-            }
-            poolValues.addPoolValue(result, poolValue);
+    /**
+     * @return the global pool used by this builder, null if the builder sets its own values
+     * @throws IllegalArgumentException if the global pool no longer exists
+     */
+    private GlobalPoolDefinition findGlobalPool() {
+        if (globalPool == null) {
+            return null;
+        }
+        GlobalPoolDefinition definition = ParameterPoolConfiguration.get().getPool(globalPool);
+        if (definition == null) {
+            throw new IllegalArgumentException("No global parameter pool named " + globalPool);
         }
-        poolValues.printValues(logger);
+        return definition;
+    }
+
+    private String poolName(GlobalPoolDefinition definition) {
+        return definition != null ? definition.getName() : name;
+    }
 
-        String value = poolValues.selectValue(allowedValues, preferError);
-        if (value == null) {
-            throw new IllegalArgumentException("No allowable value found! All of these values were taken: "
-                    + allowedValues.toString());
+    private String poolValues(GlobalPoolDefinition definition) {
+        return definition != null ? definition.getValues() : values;
+    }
+
+    /**
+     * Values can only be read from a file for global pools, as those are set up by administrators.
+     */
+    private PoolValueSet parsePool(GlobalPoolDefinition definition, String expandedValues) {
+        if (definition == null && PoolFileSource.isFileSource(expandedValues)) {
+            throw new IllegalArgumentException("Values for " + name + " can only be read from a file by a global pool"
+                    + ", set the pool up under Parameter Pools on the Configure System page");
+        }
+        return ParsedPoolCache.getInstance().get(expandedValues);
+    }
+
+    /**
+     * A global pool without projects uses the history of every job using the pool, as builds of any of them
+     * may still hold a value.
+     */
+    private List<Job<?, ?>> projectsToUse(GlobalPoolDefinition definition, Job<?, ?> currentProject) {
+        if (definition != null && definition.getProjects() == null) {
+            return ProjectResolver.getInstance().resolveUsersOf(definition.getName(), currentProject);
         }
-        return value;
+        return resolveProjects(definition != null ? definition.getProjects() : projects, currentProject);
+    }
+
+    private String claimReservedValue(AbstractBuild build, PoolValueSelector selector, String owner,
+                                      PrintStream logger) {
+        PoolReservationAction reservation = build.getAction(PoolReservationAction.class);
+        String reservedValue = reservation != null ? reservation.get(selector.getPoolName()) : null;
+        if (reservedValue == null) {
+            return null;
+        }
+        List<String> reservedValues = Arrays.asList(PoolValueSelector.splitValues(reservedValue));
+        if (reservedValues.size() != getCount() || !selector.getPool().containsAll(reservedValues)) {
+            return null;
+        }
+        if (!selector.claim(reservedValues, reservation.getOwner(), owner)) {
+            logger.println("Value " + reservedValue + " reserved while queued is no longer free, selecting again");
+            return null;
+        }
+        logger.println("Using value " + reservedValue + " reserved while the build was queued");
+        return reservedValue;
+    }
+
+    /**
+     * @param projects comma separated project names, blank to use the current project
+     * @return projects that use the pool
+     */
+    static List<Job<?, ?>> resolveProjects(String projects, Job<?, ?> currentProject) {
+        return ProjectResolver.getInstance().resolve(projects, currentProject);
     }
 
     @Override
@@ -212,8 +377,10 @@ public class ParameterPoolBuilder extends Builder {
             load();
         }
 
-        public FormValidation doCheckName(@QueryParameter String value)
+        public FormValidation doCheckName(@QueryParameter String value, @QueryParameter String globalPool)
                 throws IOException, ServletException {
+            if (Util.fixEmpty(globalPool) != null)
+                return FormValidation.ok();
             if (value.length() == 0)
                 return FormValidation.error("Please set a parameter name");
             if (value.length() < 2)
@@ -221,21 +388,41 @@ public class ParameterPoolBuilder extends Builder {
             return FormValidation.ok();
         }
 
-        public FormValidation doCheckValues(@QueryParameter String value)
+        public FormValidation doCheckValues(@QueryParameter String value, @QueryParameter String globalPool)
                 throws IOException, ServletException {
+            if (Util.fixEmpty(globalPool) != null)
+                return FormValidation.ok();
             if (value.length() == 0)
                 return FormValidation.error("Please set parameter values");
+            // values with variables can only be checked once a build expands them
+            if (value.indexOf('$') == -1) {
+                try {
+                    new ParameterParser(value);
+                } catch (IllegalArgumentException e) {
+                    return FormValidation.error(e.getMessage());
+                }
+            }
             return FormValidation.ok();
         }
 
+        public ListBoxModel doFillGlobalPoolItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("None", "");
+            for (GlobalPoolDefinition pool : ParameterPoolConfiguration.get().getPools()) {
+                items.add(pool.getName());
+            }
+            return items;
+        }
+
         /**
          * Form validation method.
          *
          * Copied from hudson.tasks.BuildTrigger.doCheck(Item project, String value)
          */
-        public FormValidation doCheckProjects(@AncestorInPath AbstractProject<?,?> project, @QueryParameter String value ) {
+        public FormValidation doCheckProjects(@AncestorInPath AbstractProject<?,?> project, @QueryParameter String value,
+                                              @QueryParameter String globalPool) {
             // Require CONFIGURE permission on this project
-            if(!project.hasPermission(Item.CONFIGURE)){
+            if(!project.hasPermission(Item.CONFIGURE) || Util.fixEmpty(globalPool) != null){
                 return FormValidation.ok();
             }
             StringTokenizer tokens = new StringTokenizer(Util.fixNull(value),",");
@@ -245,8 +432,10 @@ public class ParameterPoolBuilder extends Builder {
                 if (StringUtils.isNotBlank(projectName)) {
                     Item item = Jenkins.getInstance().getItem(projectName,project,Item.class); // only works after version 1.410
                     if(item==null){
-                        return FormValidation.error("Project name " + projectName + " not found, did you mean "
-                                + AbstractProject.findNearest(projectName).getName());
+                        String nearest = JobNameIndex.getInstance()
+                                .nearest(Items.getCanonicalName(project.getParent(), projectName));
+                        return FormValidation.error("Project name " + projectName + " not found"
+                                + (nearest != null ? ", did you mean " + nearest : ""));
                     }
                     if(!(item instanceof AbstractProject)){
                         return FormValidation.error("Project " + projectName + " is not buildable");
@@ -265,15 +454,26 @@ public class ParameterPoolBuilder extends Builder {
         /**
          * Autocompletion method
          *
-         * Copied from hudson.tasks.BuildTrigger.doAutoCompleteChildProjects(String value)
+         * Based on hudson.tasks.BuildTrigger.doAutoCompleteChildProjects(String value),
+         * but only jobs with names starting with the value are checked, found using {@link JobNameIndex}
          *
          * @param value
          * @return
          */
         public AutoCompletionCandidates doAutoCompleteProjects(@QueryParameter String value, @AncestorInPath ItemGroup context) {
             AutoCompletionCandidates candidates = new AutoCompletionCandidates();
-            List<Job> jobs = Jenkins.getInstance().getAllItems(Job.class);
-            for (Job job: jobs) {
+            Jenkins jenkins = Jenkins.getInstance();
+            if (context == null) {
+                context = jenkins;
+            }
+            value = Util.fixNull(value);
+            // without a value every job is offered, including those outside the folder as ../name
+            String prefix = value.length() > 0 ? Items.getCanonicalName(context, value) : "";
+            for (String fullName : JobNameIndex.getInstance().withPrefix(prefix)) {
+                Job job = jenkins.getItemByFullName(fullName, Job.class);
+                if (job == null) {
+                    continue;
+                }
                 String relativeName = job.getRelativeNameFrom(context);
                 if (relativeName.startsWith(value)) {
                     if (job.hasPermission(Item.READ)) {
@@ -298,29 +498,78 @@ public class ParameterPoolBuilder extends Builder {
 
     }
 
-    private static class ParameterEnvAction implements EnvironmentContributingAction {
+    static class ParameterEnvAction implements EnvironmentContributingAction {
         // Decided not to record this data in build.xml, so marked transient:
         private Map<String,String> data = new HashMap<String,String>();
 
-        private void add(String key, String val) {
+        /**
+         * @return action of the run, added to it if it doesn't have one yet
+         */
+        static ParameterEnvAction addTo(Run<?, ?> run) {
+            synchronized (run) {
+                ParameterEnvAction envAction = run.getAction(ParameterEnvAction.class);
+                if (envAction == null) {
+                    envAction = new ParameterEnvAction();
+                    run.addAction(envAction);
+                }
+                return envAction;
+            }
+        }
+
+        synchronized void add(String key, String val) {
             if (data==null) return;
             data.put(key, val);
         }
 
-        public void buildEnvVars(AbstractBuild<?,?> build, EnvVars env) {
-            if (data!=null) env.putAll(data);
+        /**
+         * Joins the value to any values already set for the key.
+         */
+        synchronized void addValue(String key, String val) {
+            if (data==null) return;
+            String currentVal = data.get(key);
+            if (currentVal == null) {
+                data.put(key, val);
+                return;
+            }
+            List<String> values = new ArrayList<String>(Arrays.asList(PoolValueSelector.splitValues(currentVal)));
+            for (String addedVal : PoolValueSelector.splitValues(val)) {
+                if (!values.contains(addedVal)) {
+                    values.add(addedVal);
+                }
+            }
+            data.put(key, PoolValueSelector.joinValues(values));
+        }
+
+        public synchronized void buildEnvVars(AbstractBuild<?,?> build, EnvVars env) {
+            if (data == null) return;
+            for (Map.Entry<String, String> entry : data.entrySet()) {
+                putValues(env, entry.getKey(), entry.getValue());
+            }
+        }
+
+        /**
+         * Puts the value for the name, and if more than one value was selected each value as name_1 to name_N.
+         */
+        static void putValues(Map<String, String> env, String name, String value) {
+            env.put(name, value);
+            String[] values = PoolValueSelector.splitValues(value);
+            if (values.length > 1) {
+                for (int i = 0; i < values.length; i ++) {
+                    env.put(name + "_" + (i + 1), values[i]);
+                }
+            }
         }
 
         public String getIconFileName() { return null; }
         public String getDisplayName() { return null; }
         public String getUrlName() { return null; }
 
-        public String getValue(String name) {
+        public synchronized String getValue(String name) {
             return data != null ? data.get(name) : null;
         }
 
-        public Set<String> getNames() {
-            return data != null ? data.keySet() : new HashSet<String>();
+        public synchronized Set<String> getNames() {
+            return data != null ? new HashSet<String>(data.keySet()) : new HashSet<String>();
         }
     }
 }
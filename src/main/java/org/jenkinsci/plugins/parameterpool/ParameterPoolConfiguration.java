@@ -0,0 +1,109 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pools shared between jobs and the quarantine and lease timeout settings for every pool,
+ * configured on the Configure System page.
+ */
+@Extension
+public class ParameterPoolConfiguration extends GlobalConfiguration {
+
+    static final int DEFAULT_QUARANTINE_MINUTES = 60;
+
+    private List<GlobalPoolDefinition> pools = new ArrayList<GlobalPoolDefinition>();
+
+    /**
+     * Failed builds in a row that quarantine a value, 0 if values are never quarantined.
+     */
+    private int quarantineFailures;
+
+    private int quarantineMinutes = DEFAULT_QUARANTINE_MINUTES;
+
+    /**
+     * Minutes after which a lease that hasn't been renewed is released, 0 if leases never expire.
+     */
+    private int leaseTimeoutMinutes;
+
+    private boolean abortExpiredBuilds;
+
+    public ParameterPoolConfiguration() {
+        load();
+    }
+
+    public static ParameterPoolConfiguration get() {
+        return GlobalConfiguration.all().get(ParameterPoolConfiguration.class);
+    }
+
+    public List<GlobalPoolDefinition> getPools() {
+        return pools != null ? Collections.unmodifiableList(pools) : Collections.<GlobalPoolDefinition>emptyList();
+    }
+
+    public void setPools(List<GlobalPoolDefinition> pools) {
+        this.pools = new ArrayList<GlobalPoolDefinition>(pools);
+        save();
+    }
+
+    public int getQuarantineFailures() {
+        return quarantineFailures;
+    }
+
+    public int getQuarantineMinutes() {
+        return quarantineMinutes;
+    }
+
+    public void setQuarantine(int quarantineFailures, int quarantineMinutes) {
+        this.quarantineFailures = Math.max(0, quarantineFailures);
+        this.quarantineMinutes = quarantineMinutes > 0 ? quarantineMinutes : DEFAULT_QUARANTINE_MINUTES;
+        save();
+    }
+
+    public int getLeaseTimeoutMinutes() {
+        return leaseTimeoutMinutes;
+    }
+
+    /**
+     * @return true if builds whose leases expired are aborted
+     */
+    public boolean isAbortExpiredBuilds() {
+        return abortExpiredBuilds;
+    }
+
+    public void setLeaseTimeout(int leaseTimeoutMinutes, boolean abortExpiredBuilds) {
+        this.leaseTimeoutMinutes = Math.max(0, leaseTimeoutMinutes);
+        this.abortExpiredBuilds = abortExpiredBuilds;
+        save();
+    }
+
+    public QuarantinePolicy getQuarantinePolicy() {
+        return QuarantinePolicy.ofMinutes(quarantineFailures, quarantineMinutes);
+    }
+
+    /**
+     * @return the pool with the name, null if there is no such pool
+     */
+    public GlobalPoolDefinition getPool(String name) {
+        for (GlobalPoolDefinition pool : getPools()) {
+            if (pool.getName() != null && pool.getName().equals(name)) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        setQuarantine(json.optInt("quarantineFailures", 0),
+                json.optInt("quarantineMinutes", DEFAULT_QUARANTINE_MINUTES));
+        setLeaseTimeout(json.optInt("leaseTimeoutMinutes", 0), json.optBoolean("abortExpiredBuilds"));
+        setPools(req.bindJSONToList(GlobalPoolDefinition.class, json.get("pools")));
+        return true;
+    }
+}
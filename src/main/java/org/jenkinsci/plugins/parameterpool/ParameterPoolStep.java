@@ -0,0 +1,112 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.Util;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Pipeline block step that selects a pool value, exposes it as an environment variable to the block,
+ * and releases it as soon as the block exits rather than when the build completes.
+ *
+ * <pre>
+ * withParameterPool(name: 'testVm', values: 'vm[1..4]') {
+ *     sh 'run-tests.sh $testVm'
+ * }
+ * </pre>
+ */
+public class ParameterPoolStep extends AbstractStepImpl {
+
+    private final String name;
+
+    private final String values;
+
+    private String projects;
+
+    private boolean preferError;
+
+    private int count = 1;
+
+    private String affinityKey;
+
+    @DataBoundConstructor
+    public ParameterPoolStep(String name, String values) {
+        this.name = name;
+        this.values = values;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getValues() {
+        return values;
+    }
+
+    public String getProjects() {
+        return projects;
+    }
+
+    @DataBoundSetter
+    public void setProjects(String projects) {
+        this.projects = Util.fixEmptyAndTrim(projects);
+    }
+
+    public boolean isPreferError() {
+        return preferError;
+    }
+
+    @DataBoundSetter
+    public void setPreferError(boolean preferError) {
+        this.preferError = preferError;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Number of values to select, exposed as name_1 to name_N as well as a comma separated list as name.
+     */
+    @DataBoundSetter
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public String getAffinityKey() {
+        return affinityKey;
+    }
+
+    /**
+     * Key, such as the branch name, whose builds should reuse the value they last used if it is free.
+     */
+    @DataBoundSetter
+    public void setAffinityKey(String affinityKey) {
+        this.affinityKey = Util.fixEmptyAndTrim(affinityKey);
+    }
+
+    @Extension(optional = true)
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(ParameterPoolStepExecution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "withParameterPool";
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Use a value from a parameter pool";
+        }
+    }
+}
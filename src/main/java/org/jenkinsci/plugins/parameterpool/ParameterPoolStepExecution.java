@@ -0,0 +1,224 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import com.google.inject.Inject;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.model.CauseOfInterruption;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.BodyExecution;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.EnvironmentExpander;
+import org.jenkinsci.plugins.workflow.steps.FlowInterruptedException;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selects and leases a pool value for the body of a {@link ParameterPoolStep}, releasing it when the body exits.
+ */
+public class ParameterPoolStepExecution extends AbstractStepExecutionImpl {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(ParameterPoolStepExecution.class.getName());
+
+    @Inject(optional = true)
+    private transient ParameterPoolStep step;
+
+    @StepContextParameter
+    private transient Run<?, ?> run;
+
+    @StepContextParameter
+    private transient EnvVars env;
+
+    @StepContextParameter
+    private transient TaskListener listener;
+
+    private String poolName;
+
+    /**
+     * Expanded values of the pool, kept to look up the capacity of the value when the step resumes.
+     */
+    private String poolValues;
+
+    private String value;
+
+    private String owner;
+
+    private BodyExecution body;
+
+    @Override
+    public boolean start() throws Exception {
+        PrintStream logger = listener.getLogger();
+
+        poolName = env.expand(step.getName());
+        poolValues = env.expand(step.getValues());
+        if (PoolFileSource.isFileSource(poolValues)) {
+            throw new AbortException("Values for " + poolName
+                    + " can only be read from a file by a global pool, set the pool up on the Configure System page");
+        }
+        PoolValueSet allowedValues = ParsedPoolCache.getInstance().get(poolValues);
+        if (allowedValues.isEmpty()) {
+            throw new AbortException("No values set for name " + poolName);
+        }
+        LOGGER.fine(allowedValues.size() + " values in pool " + poolName + " for " + run);
+
+        // scoped to this block so parallel blocks of the same build can't be handed the same value
+        owner = run.getExternalizableId() + "/" + UUID.randomUUID().toString();
+        PoolValueSelector selector = new PoolValueSelector(poolName, allowedValues, step.isPreferError());
+        selector.setQuarantinePolicy(ParameterPoolConfiguration.get().getQuarantinePolicy());
+        selector.setAffinityKey(Util.fixEmptyAndTrim(env.expand(step.getAffinityKey())));
+        PoolSelectionTrace trace = selector.newTrace();
+        try {
+            value = PoolValueSelector.joinValues(selector.allocate(owner, PoolValueSelector.recordsFor(
+                    ParameterPoolBuilder.resolveProjects(step.getProjects(), run.getParent())),
+                    Math.max(1, step.getCount()), trace));
+        } finally {
+            logger.println(trace.getSummary());
+            PoolSelectionTraceAction.addTo(run, trace);
+        }
+
+        // parallel blocks of the same pool each add their value rather than replacing the others
+        ParameterPoolBuilder.ParameterEnvAction.addTo(run).addValue(poolName, value);
+        PoolStateIndex.getInstance().recordAddedValue(run, poolName, value);
+        LOGGER.fine("Setting " + poolName + " to " + value + " for the body of the step in " + run);
+
+        EnvVars poolEnv = new EnvVars();
+        ParameterPoolBuilder.ParameterEnvAction.putValues(poolEnv, poolName, value);
+        body = getContext().newBodyInvoker()
+                .withContext(EnvironmentExpander.merge(getContext().get(EnvironmentExpander.class),
+                        new PoolValueExpander(poolEnv)))
+                .withCallback(new ReleaseCallback(poolName, value, owner))
+                .start();
+        return false;
+    }
+
+    /**
+     * Leases are only held in memory, so the value is leased again when the step resumes after a restart.
+     */
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (value == null) {
+            return;
+        }
+        final PoolValueSet allowedValues = ParsedPoolCache.getInstance().get(poolValues);
+        final String[] values = PoolValueSelector.splitValues(value);
+        List<String> valuesInUse = PoolLeaseRegistry.getInstance().update(poolName,
+                new PoolLeaseRegistry.LeaseUpdate<List<String>>() {
+                    public List<String> apply(PoolLeases leases) {
+                        List<String> valuesInUse = new ArrayList<String>();
+                        for (String resumedValue : values) {
+                            if (!leases.lease(resumedValue, owner, allowedValues.getCapacity(resumedValue))) {
+                                valuesInUse.add(resumedValue);
+                            }
+                        }
+                        return valuesInUse;
+                    }
+                });
+        if (!valuesInUse.isEmpty()) {
+            LOGGER.warning("Values " + valuesInUse + " of pool " + poolName + " held by " + owner
+                    + " were leased by other builds before the step resumed");
+        }
+        try {
+            PoolStateIndex.getInstance().recordAddedValue(getContext().get(Run.class), poolName, value);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to record " + value + " of pool " + poolName + " for " + owner, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the body, the callback releases the value and completes the step once the body has stopped.
+     */
+    @Override
+    public void stop(Throwable cause) throws Exception {
+        CauseOfInterruption[] causes = new CauseOfInterruption[0];
+        if (cause instanceof FlowInterruptedException) {
+            causes = ((FlowInterruptedException) cause).getCauses().toArray(causes);
+        }
+        if (body == null || !body.cancel(causes)) {
+            getContext().onFailure(cause);
+        }
+    }
+
+    private static void release(StepContext context, String poolName, String value, String owner, Result result) {
+        PoolLeaseRegistry.getInstance().releaseAll(owner, result);
+        try {
+            Run<?, ?> run = context.get(Run.class);
+            PoolStateIndex.getInstance().recordReleased(run, poolName, value, result);
+            context.get(TaskListener.class).getLogger().println("Released " + value + " back to pool " + poolName);
+        } catch (IOException e) {
+            // the lease has been released, only the index is left to catch up when the build completes
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class PoolValueExpander extends EnvironmentExpander {
+
+        private static final long serialVersionUID = 1L;
+
+        private final EnvVars poolEnv;
+
+        private PoolValueExpander(EnvVars poolEnv) {
+            this.poolEnv = poolEnv;
+        }
+
+        @Override
+        public void expand(EnvVars env) throws IOException, InterruptedException {
+            env.overrideAll(poolEnv);
+        }
+    }
+
+    private static class ReleaseCallback extends BodyExecutionCallback {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String poolName;
+
+        private final String value;
+
+        private final String owner;
+
+        private ReleaseCallback(String poolName, String value, String owner) {
+            this.poolName = poolName;
+            this.value = value;
+            this.owner = owner;
+        }
+
+        @Override
+        public void onSuccess(StepContext context, Object result) {
+            release(context, poolName, value, owner, Result.SUCCESS);
+            context.onSuccess(result);
+        }
+
+        @Override
+        public void onFailure(StepContext context, Throwable t) {
+            release(context, poolName, value, owner, resultOf(t));
+            context.onFailure(t);
+        }
+
+        /**
+         * @return result the failure leaves the value with, an interrupted body doesn't count against its value
+         */
+        private static Result resultOf(Throwable t) {
+            if (t instanceof FlowInterruptedException) {
+                return ((FlowInterruptedException) t).getResult();
+            }
+            return t instanceof InterruptedException ? Result.ABORTED : Result.FAILURE;
+        }
+    }
+}
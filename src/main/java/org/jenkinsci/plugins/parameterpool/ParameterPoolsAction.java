@@ -0,0 +1,58 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.List;
+
+/**
+ * Exposes pool allocation statistics, e.g. at /parameter-pool/api/json
+ * and the status of a pool at /parameter-pool/pool/name/
+ */
+@Extension
+@ExportedBean
+public class ParameterPoolsAction implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Parameter Pools";
+    }
+
+    public String getUrlName() {
+        return "parameter-pool";
+    }
+
+    public Api getApi() {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        return new Api(this);
+    }
+
+    /**
+     * @return status of the pool, the resource responds with not found if the pool is unknown
+     */
+    public PoolStatusResource getPool(String name) {
+        return new PoolStatusResource(name);
+    }
+
+    @Exported
+    public List<PoolStatistics> getPools() {
+        return PoolLeaseRegistry.getInstance().getStatistics();
+    }
+
+    @Exported
+    public long getParsedPoolCacheHits() {
+        return ParsedPoolCache.getInstance().getHits();
+    }
+
+    @Exported
+    public long getParsedPoolCacheMisses() {
+        return ParsedPoolCache.getInstance().getMisses();
+    }
+}
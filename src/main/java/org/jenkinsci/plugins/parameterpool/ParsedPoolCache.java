@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded least recently used cache of parsed pools, keyed by the expanded values text.
+ * Parsed pools are immutable so the same instance can be shared by concurrent builds.
+ * Values text of the form file:PATH is read from the file by a {@link PoolFileSource} kept for each path.
+ */
+public class ParsedPoolCache {
+
+    static final int DEFAULT_MAX_SIZE = Integer.getInteger(ParsedPoolCache.class.getName() + ".maxSize", 64);
+
+    private static final ParsedPoolCache INSTANCE = new ParsedPoolCache(DEFAULT_MAX_SIZE);
+
+    private final Map<String, PoolValueSet> pools;
+
+    private final ConcurrentMap<String, PoolFileSource> fileSources = new ConcurrentHashMap<String, PoolFileSource>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public ParsedPoolCache(final int maxSize) {
+        this.pools = new LinkedHashMap<String, PoolValueSet>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PoolValueSet> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public static ParsedPoolCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the parsed pool for the text, parsing it only if it isn't already cached
+     * @throws IllegalArgumentException if the text refers to a file that can't be read
+     */
+    public PoolValueSet get(String valuesText) {
+        if (PoolFileSource.isFileSource(valuesText)) {
+            return fileSource(valuesText).getValues();
+        }
+        String key = valuesText == null ? "" : valuesText;
+        synchronized (pools) {
+            PoolValueSet pool = pools.get(key);
+            if (pool != null) {
+                hits.incrementAndGet();
+                return pool;
+            }
+        }
+        misses.incrementAndGet();
+        // parsed outside of the lock, if two builds parse the same text at once the last one wins
+        PoolValueSet pool = new ParameterParser(key).getValues();
+        synchronized (pools) {
+            pools.put(key, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * @return text that changes whenever the pool for the values text changes
+     */
+    public String getRevision(String valuesText) {
+        if (PoolFileSource.isFileSource(valuesText)) {
+            PoolFileSource source = fileSource(valuesText);
+            // reads the file again if it changed, so the revision is of the current values
+            source.getValues();
+            return valuesText + "@" + source.getRevision();
+        }
+        return valuesText;
+    }
+
+    private PoolFileSource fileSource(String valuesText) {
+        String path = PoolFileSource.fileOf(valuesText).getPath();
+        PoolFileSource source = fileSources.get(path);
+        if (source == null) {
+            PoolFileSource newSource = new PoolFileSource(new File(path));
+            source = fileSources.putIfAbsent(path, newSource);
+            if (source == null) {
+                source = newSource;
+            }
+        }
+        return source;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized (pools) {
+            return pools.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (pools) {
+            pools.clear();
+        }
+        fileSources.clear();
+    }
+}
@@ -0,0 +1,185 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Result;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lightweight record of a build's pool values and result, kept by {@link PoolStateIndex}
+ * so that selecting a value doesn't need to load build records from disk.
+ */
+public class PoolBuildRecord {
+
+    /**
+     * Orders records with the most recently started build first.
+     */
+    public static final Comparator<PoolBuildRecord> NEWEST_FIRST = new Comparator<PoolBuildRecord>() {
+        public int compare(PoolBuildRecord firstRecord, PoolBuildRecord secondRecord) {
+            if (firstRecord.startTimeInMillis != secondRecord.startTimeInMillis) {
+                return firstRecord.startTimeInMillis > secondRecord.startTimeInMillis ? -1 : 1;
+            }
+            return secondRecord.number - firstRecord.number;
+        }
+    };
+
+    private final String jobName;
+
+    private final int number;
+
+    private final long startTimeInMillis;
+
+    private final Map<String, String> values = new LinkedHashMap<String, String>();
+
+    /**
+     * Results for values released before the build completed, keyed by pool name then value.
+     */
+    private final Map<String, Map<String, Result>> releasedResults = new LinkedHashMap<String, Map<String, Result>>();
+
+    private volatile Result result;
+
+    public PoolBuildRecord(String jobName, int number, long startTimeInMillis) {
+        this.jobName = jobName;
+        this.number = number;
+        this.startTimeInMillis = startTimeInMillis;
+    }
+
+    public String getJobName() {
+        return jobName;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    /**
+     * @return id matching the externalizable id of the build
+     */
+    public String getId() {
+        return jobName + "#" + number;
+    }
+
+    public long getStartTimeInMillis() {
+        return startTimeInMillis;
+    }
+
+    public boolean isBuilding() {
+        return result == null;
+    }
+
+    /**
+     * @return result of the build, null if still building
+     */
+    public Result getResult() {
+        return result;
+    }
+
+    public void setResult(Result result) {
+        this.result = result;
+    }
+
+    public synchronized void putValue(String name, String value) {
+        values.put(name, value);
+    }
+
+    /**
+     * Adds to the values of the pool name, for builds that select values of the same pool more than once,
+     * e.g. in parallel blocks.
+     */
+    public synchronized void addValue(String name, String value) {
+        String currentValue = values.get(name);
+        if (currentValue == null) {
+            values.put(name, value);
+            return;
+        }
+        List<String> joinedValues = new ArrayList<String>(Arrays.asList(PoolValueSelector.splitValues(currentValue)));
+        for (String addedValue : PoolValueSelector.splitValues(value)) {
+            if (!joinedValues.contains(addedValue)) {
+                joinedValues.add(addedValue);
+            }
+        }
+        values.put(name, PoolValueSelector.joinValues(joinedValues));
+    }
+
+    /**
+     * @return value for the pool name, values joined by {@link PoolValueSelector#joinValues(List)} if there are several
+     */
+    public synchronized String getValue(String name) {
+        return values.get(name);
+    }
+
+    public synchronized Set<String> getNames() {
+        return new LinkedHashSet<String>(values.keySet());
+    }
+
+    /**
+     * Records that values of the pool name were released while the build is still running.
+     * @param value value or joined values released
+     */
+    public synchronized void release(String name, String value, Result result) {
+        Map<String, Result> results = releasedResults.get(name);
+        if (results == null) {
+            results = new LinkedHashMap<String, Result>();
+            releasedResults.put(name, results);
+        }
+        for (String releasedValue : PoolValueSelector.splitValues(value)) {
+            results.put(releasedValue, result);
+        }
+    }
+
+    /**
+     * @return results of the values of the pool name released before the build completed, keyed by value
+     */
+    public synchronized Map<String, Result> getReleasedResults(String name) {
+        Map<String, Result> results = releasedResults.get(name);
+        return results != null ? new LinkedHashMap<String, Result>(results) : Collections.<String, Result>emptyMap();
+    }
+
+    /**
+     * @return result for the value of the pool name, {@link Result#NOT_BUILT} if the value is still in use
+     */
+    public synchronized Result getResultFor(String name, String value) {
+        if (result != null) {
+            return result;
+        }
+        Map<String, Result> results = releasedResults.get(name);
+        Result releasedResult = results != null ? results.get(value) : null;
+        return releasedResult != null ? releasedResult : Result.NOT_BUILT;
+    }
+
+    /**
+     * @return worst result for the values of the pool name, {@link Result#NOT_BUILT} if any value is still in use
+     */
+    public synchronized Result getResultFor(String name) {
+        if (result != null) {
+            return result;
+        }
+        String value = values.get(name);
+        if (value == null) {
+            return Result.NOT_BUILT;
+        }
+        Result worstResult = Result.SUCCESS;
+        for (String poolValue : PoolValueSelector.splitValues(value)) {
+            Result valueResult = getResultFor(name, poolValue);
+            if (valueResult == Result.NOT_BUILT) {
+                return valueResult;
+            }
+            if (valueResult.isWorseThan(worstResult)) {
+                worstResult = valueResult;
+            }
+        }
+        return worstResult;
+    }
+
+    @Override
+    public String toString() {
+        return getId() + " " + (isBuilding() ? "building" : result.toString());
+    }
+}
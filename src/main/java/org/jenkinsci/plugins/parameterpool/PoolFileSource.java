@@ -0,0 +1,183 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Pool values read from a file on the controller, for pools generated by another system such as an inventory.
+ * The file holds values in the same form as the values text, one or more per line.
+ * Blank lines and lines starting with # are ignored.
+ *
+ * The file is only parsed again once its modification time, size or content changes. The content is only hashed
+ * while the modification time is too recent to tell apart from a rewrite of the same length within the file system's
+ * timestamp granularity, so getting the values of an unchanged file costs the same however many values it holds.
+ */
+public class PoolFileSource {
+
+    private static final Logger LOGGER = Logger.getLogger(PoolFileSource.class.getName());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final String PREFIX = "file:";
+
+    /**
+     * Coarsest modification time granularity of the file systems in use, e.g. ext3 and HFS+ only store seconds.
+     */
+    static final long MODIFICATION_TIME_GRANULARITY = 2000;
+
+    private final File file;
+
+    private long lastModified;
+
+    private long length;
+
+    /**
+     * Time the file was last read, taken before reading it.
+     */
+    private long readTime;
+
+    private String contentHash;
+
+    private PoolValueSet pool;
+
+    public PoolFileSource(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return true if the values text refers to a file rather than listing the values
+     */
+    public static boolean isFileSource(String valuesText) {
+        return valuesText != null && valuesText.trim().startsWith(PREFIX);
+    }
+
+    /**
+     * @return file the values text refers to
+     */
+    public static File fileOf(String valuesText) {
+        return new File(valuesText.trim().substring(PREFIX.length()).trim());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return values of the file, parsed again only if the file changed since they were last read
+     * @throws IllegalArgumentException if the file can't be read
+     */
+    public synchronized PoolValueSet getValues() {
+        long currentLastModified = file.lastModified();
+        long currentLength = file.length();
+        boolean stampMatches = pool != null && currentLastModified == lastModified && currentLength == length;
+        if (stampMatches && readTime - lastModified >= MODIFICATION_TIME_GRANULARITY) {
+            return pool;
+        }
+        if (currentLastModified == 0 && !file.isFile()) {
+            throw new IllegalArgumentException("Pool values file " + file + " doesn't exist");
+        }
+        long currentReadTime = System.currentTimeMillis();
+        ByteBuffer content;
+        try {
+            content = read();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read pool values file " + file, e);
+        }
+        String currentContentHash = hash(content);
+        if (!stampMatches || !currentContentHash.equals(contentHash)) {
+            PoolValueSet reloadedPool = new ParameterParser(valuesText(UTF_8.decode(content).toString())).getValues();
+            if (pool != null) {
+                logChanges(pool, reloadedPool);
+            }
+            pool = reloadedPool;
+        }
+        lastModified = currentLastModified;
+        length = currentLength;
+        readTime = currentReadTime;
+        contentHash = currentContentHash;
+        return pool;
+    }
+
+    /**
+     * @return text identifying the version of the file last read, changes whenever the values are read again
+     */
+    public synchronized String getRevision() {
+        return lastModified + "-" + length + "-" + contentHash;
+    }
+
+    private ByteBuffer read() throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            // read rather than mapped, as a mapped file stays locked on Windows until the mapping is collected
+            FileChannel channel = input.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading until the buffer is full
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static String hash(ByteBuffer content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(content.duplicate());
+        return new BigInteger(1, digest.digest()).toString(16);
+    }
+
+    /**
+     * @return lines of the file joined into values text, without blank lines and comments
+     */
+    static String valuesText(String fileText) {
+        StringBuilder valuesText = new StringBuilder(fileText.length());
+        for (String line : fileText.split("\r?\n")) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            if (valuesText.length() > 0) {
+                valuesText.append(", ");
+            }
+            valuesText.append(line);
+        }
+        return valuesText.toString();
+    }
+
+    /**
+     * Values no longer in the file stay leased to the builds using them, they are just never selected again
+     * and are shown as draining by {@link PoolStatusResource} until released.
+     */
+    private void logChanges(PoolValueSet previousPool, PoolValueSet reloadedPool) {
+        List<String> addedValues = new ArrayList<String>();
+        for (String value : reloadedPool) {
+            if (!previousPool.contains(value)) {
+                addedValues.add(value);
+            }
+        }
+        List<String> removedValues = new ArrayList<String>();
+        for (String value : previousPool) {
+            if (!reloadedPool.contains(value)) {
+                removedValues.add(value);
+            }
+        }
+        LOGGER.info("Reloaded pool values file " + file + ", " + reloadedPool.size() + " values, added "
+                + addedValues + ", removed " + removedValues);
+    }
+}
@@ -0,0 +1,243 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Result;
+import hudson.util.AtomicFileWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append only journal of the pool related events for a job's builds, used to restore {@link PoolStateIndex}
+ * after a restart without loading the job's build records.
+ *
+ * Each event is one line, a line that was only partially written when the process stopped is discarded
+ * when the journal is read. The journal is periodically rewritten with just the current records.
+ *
+ * The file is opened for each event, so no file handle is held for jobs that rarely build. Events are not forced
+ * to disk: they survive the process stopping, and an operating system crash can only lose the most recent events.
+ * Leases are only held in memory, so after a restart the index is all that keeps a running build's value from being
+ * selected again. When the journal is read, builds newer than the newest journaled build and builds still running
+ * are therefore checked against their build records, picking up builds and values whose events were lost. At worst
+ * older completed builds are missing from the history, which only changes which free value is preferred.
+ */
+public class PoolJournal {
+
+    private static final Logger LOGGER = Logger.getLogger(PoolJournal.class.getName());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int EVENTS_BEFORE_COMPACTION = 256;
+
+    private static final String STARTED = "S";
+    private static final String VALUE = "V";
+    private static final String RESULT = "R";
+    private static final String RELEASED = "L";
+    private static final String DELETED = "D";
+
+    private final File file;
+
+    private int eventsSinceCompaction;
+
+    /**
+     * Set when an event couldn't be written, no further events are written until the journal is compacted.
+     */
+    private boolean writeFailed;
+
+    public PoolJournal(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Replays the journal, discarding a partially written last event.
+     * @return records by build number
+     */
+    public synchronized Map<Integer, PoolBuildRecord> read(String jobName) throws IOException {
+        Map<Integer, PoolBuildRecord> records = new TreeMap<Integer, PoolBuildRecord>();
+        RandomAccessFile journalFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel readChannel = journalFile.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) readChannel.size());
+            while (buffer.hasRemaining() && readChannel.read(buffer) >= 0) {
+                // keep reading until the buffer is full
+            }
+            buffer.flip();
+
+            int completeLength = buffer.limit();
+            while (completeLength > 0 && buffer.get(completeLength - 1) != '\n') {
+                completeLength --;
+            }
+            if (completeLength < buffer.limit()) {
+                LOGGER.warning("Discarding partially written event at end of " + file);
+                readChannel.truncate(completeLength);
+            }
+            buffer.limit(completeLength);
+
+            int lineCount = 0;
+            for (String line : UTF_8.decode(buffer).toString().split("\n")) {
+                if (line.length() > 0) {
+                    replay(jobName, line, records);
+                    lineCount ++;
+                }
+            }
+            eventsSinceCompaction = Math.max(0, lineCount - records.size());
+        } finally {
+            journalFile.close();
+        }
+        return records;
+    }
+
+    public synchronized void appendStarted(PoolBuildRecord record) {
+        append(STARTED + " " + record.getNumber() + " " + record.getStartTimeInMillis());
+        for (String name : record.getNames()) {
+            appendValue(record, name, record.getValue(name));
+        }
+    }
+
+    public synchronized void appendValue(PoolBuildRecord record, String name, String value) {
+        append(VALUE + " " + record.getNumber() + " " + encode(name) + " " + encode(value));
+    }
+
+    public synchronized void appendResult(PoolBuildRecord record) {
+        if (!record.isBuilding()) {
+            append(RESULT + " " + record.getNumber() + " " + record.getResult().toString());
+        }
+    }
+
+    public synchronized void appendReleased(PoolBuildRecord record, String name, String value, Result result) {
+        append(RELEASED + " " + record.getNumber() + " " + encode(name) + " " + result.toString() + " "
+                + encode(value));
+    }
+
+    public synchronized void appendDeleted(int number) {
+        append(DELETED + " " + number);
+    }
+
+    public synchronized boolean needsCompaction() {
+        return eventsSinceCompaction >= EVENTS_BEFORE_COMPACTION;
+    }
+
+    /**
+     * Atomically replaces the journal with the events for the specified records.
+     */
+    public synchronized void compact(Collection<PoolBuildRecord> records) throws IOException {
+        file.getParentFile().mkdirs();
+        AtomicFileWriter writer = new AtomicFileWriter(file, UTF_8.name());
+        try {
+            for (PoolBuildRecord record : records) {
+                writer.write(STARTED + " " + record.getNumber() + " " + record.getStartTimeInMillis() + "\n");
+                for (String name : record.getNames()) {
+                    writer.write(VALUE + " " + record.getNumber() + " " + encode(name) + " "
+                            + encode(record.getValue(name)) + "\n");
+                }
+                for (String name : record.getNames()) {
+                    for (Map.Entry<String, Result> released : record.getReleasedResults(name).entrySet()) {
+                        writer.write(RELEASED + " " + record.getNumber() + " " + encode(name) + " "
+                                + released.getValue().toString() + " " + encode(released.getKey()) + "\n");
+                    }
+                }
+                if (!record.isBuilding()) {
+                    writer.write(RESULT + " " + record.getNumber() + " " + record.getResult().toString() + "\n");
+                }
+            }
+            writer.commit();
+        } finally {
+            writer.abort();
+        }
+        eventsSinceCompaction = 0;
+        writeFailed = false;
+    }
+
+    public synchronized void delete() {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warning("Failed to delete " + file);
+        }
+    }
+
+    private void append(String event) {
+        if (writeFailed) {
+            return;
+        }
+        try {
+            file.getParentFile().mkdirs();
+            FileOutputStream output = new FileOutputStream(file, true);
+            try {
+                output.write(event.concat("\n").getBytes(UTF_8.name()));
+            } finally {
+                output.close();
+            }
+            eventsSinceCompaction ++;
+        } catch (IOException e) {
+            // a journal missing events would restore the wrong state, so drop it and rely on build records instead
+            LOGGER.log(Level.WARNING, "Failed to write to " + file + ", deleting it", e);
+            delete();
+            writeFailed = true;
+        }
+    }
+
+    private void replay(String jobName, String line, Map<Integer, PoolBuildRecord> records) {
+        String[] fields = line.split(" ");
+        try {
+            int number = Integer.parseInt(fields[1]);
+            PoolBuildRecord record = records.get(number);
+            if (STARTED.equals(fields[0])) {
+                records.put(number, new PoolBuildRecord(jobName, number, Long.parseLong(fields[2])));
+            } else if (record == null) {
+                LOGGER.fine("Ignoring event for unknown build in " + file + ": " + line);
+            } else if (VALUE.equals(fields[0])) {
+                record.putValue(decode(fields[2]), decode(fields[3]));
+            } else if (RELEASED.equals(fields[0])) {
+                String name = decode(fields[2]);
+                // events written before values were released one at a time release every value of the pool
+                String value = fields.length > 4 ? decode(fields[4]) : record.getValue(name);
+                if (value != null) {
+                    record.release(name, value, Result.fromString(fields[3]));
+                }
+            } else if (RESULT.equals(fields[0])) {
+                record.setResult(Result.fromString(fields[2]));
+            } else if (DELETED.equals(fields[0])) {
+                records.remove(number);
+            } else {
+                LOGGER.warning("Ignoring unknown event in " + file + ": " + line);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Ignoring malformed event in " + file + ": " + line, e);
+        }
+    }
+
+    private static String encode(String text) {
+        try {
+            return URLEncoder.encode(text, UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String text) {
+        try {
+            return URLDecoder.decode(text, UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
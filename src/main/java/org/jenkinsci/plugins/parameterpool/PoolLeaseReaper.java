@@ -0,0 +1,128 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.PeriodicWork;
+import hudson.model.Result;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Renews the leases of builds that are still making progress and releases leases that haven't been renewed
+ * within the lease timeout, so that a build hung on a dead agent can't hold a value indefinitely.
+ *
+ * A build renews its leases while it is building on an online computer and isn't likely stuck.
+ * A queue item renews the values reserved for it while it is queued.
+ * Only releases leases if a lease timeout is set on the Configure System page.
+ * Also drops the statistics of pools that haven't been used for a day.
+ */
+@Extension
+public class PoolLeaseReaper extends PeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(PoolLeaseReaper.class.getName());
+
+    /**
+     * Time the statistics of a pool without leases are kept after a value was last requested from it.
+     */
+    static final long STATISTICS_KEPT_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+        PoolLeaseRegistry registry = PoolLeaseRegistry.getInstance();
+        registry.pruneStatistics(System.currentTimeMillis() - STATISTICS_KEPT_MILLIS);
+
+        ParameterPoolConfiguration configuration = ParameterPoolConfiguration.get();
+        if (configuration.getLeaseTimeoutMinutes() == 0) {
+            return;
+        }
+
+        Set<String> activeOwners = new HashSet<String>();
+        for (String owner : registry.getOwners()) {
+            if (isActive(owner)) {
+                activeOwners.add(owner);
+            }
+        }
+        registry.renewAll(activeOwners);
+
+        long renewedBefore = System.currentTimeMillis()
+                - TimeUnit.MINUTES.toMillis(configuration.getLeaseTimeoutMinutes());
+        for (Map.Entry<String, List<PoolLeases.Lease>> pool : registry.releaseExpired(renewedBefore).entrySet()) {
+            for (PoolLeases.Lease lease : pool.getValue()) {
+                reclaimed(pool.getKey(), lease.getValue(), lease.getOwner(), configuration.isAbortExpiredBuilds());
+            }
+        }
+    }
+
+    private void reclaimed(String poolName, String value, String owner, boolean abortBuild) {
+        LOGGER.warning("Released value " + value + " of pool " + poolName + " as the lease held by " + owner
+                + " wasn't renewed within " + ParameterPoolConfiguration.get().getLeaseTimeoutMinutes() + " minutes");
+        Run<?, ?> run = runFor(owner);
+        if (run == null || !run.isBuilding()) {
+            return;
+        }
+        // the build is still running, so without this its value would still count as in use
+        PoolStateIndex.getInstance().recordReleased(run, poolName, value, Result.ABORTED);
+        Executor executor = run.getExecutor();
+        if (abortBuild && executor != null) {
+            LOGGER.warning("Aborting " + run.getFullDisplayName() + " as its lease on " + value + " expired");
+            executor.interrupt(Result.ABORTED);
+        }
+    }
+
+    private boolean isActive(String owner) {
+        long queueId = PoolReservationAction.queueIdOf(owner);
+        if (queueId != -1) {
+            return Jenkins.getInstance().getQueue().getItem(queueId) != null;
+        }
+        Run<?, ?> run = runFor(owner);
+        if (run == null || !run.isBuilding()) {
+            return false;
+        }
+        Executor executor = run.getExecutor();
+        if (executor == null) {
+            return false;
+        }
+        Computer computer = executor.getOwner();
+        return computer != null && computer.isOnline() && !executor.isLikelyStuck();
+    }
+
+    /**
+     * @return the build the owner id belongs to, null if it isn't the id of a build on this controller
+     */
+    static Run<?, ?> runFor(String owner) {
+        String buildId = buildIdOf(owner);
+        if (buildId == null) {
+            return null;
+        }
+        try {
+            return Run.fromExternalizableId(buildId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the build id that the owner is or is scoped to, e.g. job#1 for job#1/step, null if it isn't a build
+     */
+    static String buildIdOf(String owner) {
+        int numberIndex = owner.lastIndexOf('#');
+        if (numberIndex == -1) {
+            return null;
+        }
+        int scopeIndex = owner.indexOf('/', numberIndex);
+        return scopeIndex == -1 ? owner : owner.substring(0, scopeIndex);
+    }
+}
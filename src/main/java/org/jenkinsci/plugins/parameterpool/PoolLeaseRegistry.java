@@ -0,0 +1,252 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Result;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Controller wide registry of pool values leased to builds, keyed by pool name.
+ * Selecting and leasing a value is done inside {@link #update(String, LeaseUpdate)}, which holds a lock
+ * for the pool, so two concurrent builds can never be handed the same value.
+ * Leases are released by {@link PoolLeaseReleaser} when the owning build completes, or by {@link PoolLeaseReaper}
+ * if the build stops renewing them.
+ *
+ * Leases are kept in memory unless the system property
+ * <code>org.jenkinsci.plugins.parameterpool.PoolLeaseRegistry.sharedDirectory</code> is set, in which case
+ * they are kept in that directory by a {@link SharedFileLeaseStore} so that every controller using the directory
+ * sees the same leases.
+ */
+public class PoolLeaseRegistry {
+
+    private static final String SHARED_DIRECTORY = System.getProperty(
+            PoolLeaseRegistry.class.getName() + ".sharedDirectory");
+
+    private static final JenkinsScoped<PoolLeaseRegistry> INSTANCE = new JenkinsScoped<PoolLeaseRegistry>() {
+        @Override
+        protected PoolLeaseRegistry create(Jenkins jenkins) {
+            return new PoolLeaseRegistry(createDefaultStore(jenkins));
+        }
+    };
+
+    private final LeaseStore store;
+
+    private final ConcurrentMap<String, PoolStatistics> statistics = new ConcurrentHashMap<String, PoolStatistics>();
+
+    public PoolLeaseRegistry() {
+        this(new InMemoryLeaseStore());
+    }
+
+    public PoolLeaseRegistry(LeaseStore store) {
+        this.store = store;
+    }
+
+    public static PoolLeaseRegistry getInstance() {
+        return INSTANCE.get();
+    }
+
+    public LeaseStore getStore() {
+        return store;
+    }
+
+    /**
+     * Runs the update while holding the lock for the pool.
+     * Any value selected and leased inside the update is guaranteed not to be leased to another owner.
+     */
+    public <T> T update(String poolName, LeaseUpdate<T> update) {
+        return store.update(poolName, getStatistics(poolName), update);
+    }
+
+    public Set<String> getLeasedValues(String poolName) {
+        return update(poolName, new LeaseUpdate<Set<String>>() {
+            public Set<String> apply(PoolLeases leases) {
+                return leases.getLeasedValues();
+            }
+        });
+    }
+
+    /**
+     * @return number of leases held on each leased value of the pool
+     */
+    public Map<String, Integer> getLeaseCounts(String poolName) {
+        return update(poolName, new LeaseUpdate<Map<String, Integer>>() {
+            public Map<String, Integer> apply(PoolLeases leases) {
+                Map<String, Integer> leaseCounts = new TreeMap<String, Integer>();
+                for (String value : leases.getLeasedValues()) {
+                    leaseCounts.put(value, leases.getLeaseCount(value));
+                }
+                return leaseCounts;
+            }
+        });
+    }
+
+    /**
+     * Releases every value held by the owner across all pools.
+     * @return number of values released
+     */
+    public int releaseAll(String owner) {
+        return releaseAll(owner, null);
+    }
+
+    /**
+     * Releases every value held by the owner across all pools, recording the result of the owner's build
+     * against each value so that values failing every build can be quarantined.
+     * @param result result of the owner's build, null if it isn't known
+     * @return number of values released
+     */
+    public int releaseAll(final String owner, final Result result) {
+        int released = 0;
+        for (String poolName : store.getPoolNames()) {
+            released += update(poolName, new LeaseUpdate<Integer>() {
+                public Integer apply(PoolLeases leases) {
+                    return leases.releaseAll(owner, result);
+                }
+            });
+        }
+        return released;
+    }
+
+    /**
+     * @return owners of the leases in every pool
+     */
+    public Set<String> getOwners() {
+        final Set<String> owners = new HashSet<String>();
+        for (String poolName : store.getPoolNames()) {
+            update(poolName, new LeaseUpdate<Void>() {
+                public Void apply(PoolLeases leases) {
+                    for (PoolLeases.Lease lease : leases.getLeases()) {
+                        owners.add(lease.getOwner());
+                    }
+                    return null;
+                }
+            });
+        }
+        return owners;
+    }
+
+    /**
+     * Renews the leases held by the owners in every pool.
+     * @return number of leases renewed
+     */
+    public int renewAll(final Set<String> owners) {
+        int renewed = 0;
+        for (String poolName : store.getPoolNames()) {
+            renewed += update(poolName, new LeaseUpdate<Integer>() {
+                public Integer apply(PoolLeases leases) {
+                    return leases.renewAll(owners);
+                }
+            });
+        }
+        return renewed;
+    }
+
+    /**
+     * Releases the leases in every pool that were last renewed before the time.
+     * @return the leases released, keyed by pool name
+     */
+    public Map<String, List<PoolLeases.Lease>> releaseExpired(final long renewedBefore) {
+        Map<String, List<PoolLeases.Lease>> expiredLeases = new TreeMap<String, List<PoolLeases.Lease>>();
+        for (String poolName : store.getPoolNames()) {
+            List<PoolLeases.Lease> poolLeases = update(poolName, new LeaseUpdate<List<PoolLeases.Lease>>() {
+                public List<PoolLeases.Lease> apply(PoolLeases leases) {
+                    return leases.releaseExpired(renewedBefore);
+                }
+            });
+            if (!poolLeases.isEmpty()) {
+                expiredLeases.put(poolName, poolLeases);
+            }
+        }
+        return expiredLeases;
+    }
+
+    public Set<String> getQuarantinedValues(String poolName, final QuarantinePolicy policy) {
+        return update(poolName, new LeaseUpdate<Set<String>>() {
+            public Set<String> apply(PoolLeases leases) {
+                return leases.getQuarantinedValues(policy);
+            }
+        });
+    }
+
+    /**
+     * @return statistics for the pool, null if no value has been requested from it
+     */
+    public PoolStatistics findStatistics(String poolName) {
+        return statistics.get(poolName);
+    }
+
+    public PoolStatistics getStatistics(String poolName) {
+        PoolStatistics poolStatistics = statistics.get(poolName);
+        if (poolStatistics != null) {
+            return poolStatistics;
+        }
+        PoolStatistics newStatistics = new PoolStatistics(poolName);
+        poolStatistics = statistics.putIfAbsent(poolName, newStatistics);
+        return poolStatistics != null ? poolStatistics : newStatistics;
+    }
+
+    /**
+     * Drops the statistics of pools that hold no leases and haven't been used since the time, so that statistics
+     * of pools that no longer exist aren't kept forever.
+     * @return number of pools whose statistics were dropped
+     */
+    public int pruneStatistics(long unusedSince) {
+        int pruned = 0;
+        for (final Map.Entry<String, PoolStatistics> poolStatistics : statistics.entrySet()) {
+            if (poolStatistics.getValue().getLastUsedMillis() >= unusedSince) {
+                continue;
+            }
+            // removed while holding the pool's lock, so no lease can be recorded in the statistics as they are dropped
+            boolean removed = update(poolStatistics.getKey(), new LeaseUpdate<Boolean>() {
+                public Boolean apply(PoolLeases leases) {
+                    return leases.getLeasedValues().isEmpty()
+                            && statistics.remove(poolStatistics.getKey(), poolStatistics.getValue());
+                }
+            });
+            if (removed) {
+                pruned ++;
+            }
+        }
+        return pruned;
+    }
+
+    /**
+     * @return statistics for every pool, sorted by pool name
+     */
+    public List<PoolStatistics> getStatistics() {
+        List<PoolStatistics> allStatistics = new ArrayList<PoolStatistics>(statistics.values());
+        Collections.sort(allStatistics, new Comparator<PoolStatistics>() {
+            public int compare(PoolStatistics firstStatistics, PoolStatistics secondStatistics) {
+                return firstStatistics.getName().compareTo(secondStatistics.getName());
+            }
+        });
+        return allStatistics;
+    }
+
+    private static LeaseStore createDefaultStore(Jenkins jenkins) {
+        if (SHARED_DIRECTORY == null) {
+            return new InMemoryLeaseStore();
+        }
+        String controllerId = System.getProperty(PoolLeaseRegistry.class.getName() + ".controllerId");
+        if (controllerId == null) {
+            controllerId = jenkins.getLegacyInstanceId();
+        }
+        return new SharedFileLeaseStore(new File(SHARED_DIRECTORY), controllerId);
+    }
+
+    /**
+     * Callback run while the pool's lock is held.
+     */
+    public interface LeaseUpdate<T> {
+        T apply(PoolLeases leases);
+    }
+}
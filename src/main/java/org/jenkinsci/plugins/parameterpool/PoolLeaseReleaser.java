@@ -0,0 +1,37 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Releases the pool values leased by a build once it has completed.
+ */
+@Extension
+public class PoolLeaseReleaser extends RunListener<Run> {
+
+    public PoolLeaseReleaser() {
+        super(Run.class);
+    }
+
+    @Override
+    public void onCompleted(Run run, TaskListener listener) {
+        release(run, run.getResult());
+    }
+
+    @Override
+    public void onDeleted(Run run) {
+        release(run, null);
+    }
+
+    private void release(Run run, Result result) {
+        PoolLeaseRegistry.getInstance().releaseAll(run.getExternalizableId(), result);
+        // a value reserved while queued is still leased to the queue item if the build never claimed it
+        PoolReservationAction reservation = run.getAction(PoolReservationAction.class);
+        if (reservation != null) {
+            PoolLeaseRegistry.getInstance().releaseAll(reservation.getOwner());
+        }
+    }
+}
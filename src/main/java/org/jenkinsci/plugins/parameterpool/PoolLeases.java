@@ -0,0 +1,519 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Result;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Values of a single pool that are currently leased, mapped to the leases held by owners.
+ * A value is held by a single owner unless it was leased with a higher capacity.
+ * Not thread safe, instances are only handed out by {@link PoolLeaseRegistry} while the pool's lock is held.
+ */
+public class PoolLeases {
+
+    private final String poolName;
+
+    private PoolStatistics statistics;
+
+    private final Map<String, List<Lease>> leasesByValue = new LinkedHashMap<String, List<Lease>>();
+
+    private int leaseCount;
+
+    /**
+     * Time each value was last released, iterated least recently released first.
+     */
+    private final Map<String, Long> releaseTimes = new LinkedHashMap<String, Long>();
+
+    /**
+     * Health of the values whose last build failed, values whose last build succeeded aren't kept.
+     */
+    private final Map<String, ValueHealth> healthByValue = new LinkedHashMap<String, ValueHealth>();
+
+    /**
+     * Affinity key each value was last leased with, values last leased without a key aren't kept.
+     */
+    private final Map<String, String> affinityKeys = new LinkedHashMap<String, String>();
+
+    private String lastLeasedValue;
+
+    private int modifications;
+
+    PoolLeases(String poolName, PoolStatistics statistics) {
+        this.poolName = poolName;
+        this.statistics = statistics;
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    /**
+     * Records further leases in the statistics, which are replaced when the registry drops idle statistics.
+     */
+    void setStatistics(PoolStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    public boolean isLeased(String value) {
+        return leasesByValue.containsKey(value);
+    }
+
+    /**
+     * @return owner of the value's oldest lease, null if it isn't leased
+     */
+    public String getOwner(String value) {
+        List<Lease> leases = leasesByValue.get(value);
+        return leases != null ? leases.get(0).owner : null;
+    }
+
+    /**
+     * @return owners of the value's leases, oldest first
+     */
+    public List<String> getOwners(String value) {
+        List<String> owners = new ArrayList<String>();
+        List<Lease> leases = leasesByValue.get(value);
+        if (leases != null) {
+            for (Lease lease : leases) {
+                owners.add(lease.owner);
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * @return number of owners holding a lease on the value
+     */
+    public int getLeaseCount(String value) {
+        List<Lease> leases = leasesByValue.get(value);
+        return leases != null ? leases.size() : 0;
+    }
+
+    /**
+     * @return number of owners other than the specified one holding a lease on the value
+     */
+    public int getLeaseCountOfOthers(String value, String owner) {
+        int count = 0;
+        List<Lease> leases = leasesByValue.get(value);
+        if (leases != null) {
+            for (Lease lease : leases) {
+                if (!lease.owner.equals(owner)) {
+                    count ++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return time the value's oldest lease was taken in milliseconds, 0 if it isn't leased
+     */
+    public long getLeaseTime(String value) {
+        List<Lease> leases = leasesByValue.get(value);
+        return leases != null ? leases.get(0).leasedAt : 0;
+    }
+
+    public Set<String> getLeasedValues() {
+        return new LinkedHashSet<String>(leasesByValue.keySet());
+    }
+
+    /**
+     * @return every lease, grouped by value
+     */
+    public List<Lease> getLeases() {
+        List<Lease> allLeases = new ArrayList<Lease>(leaseCount);
+        for (List<Lease> leases : leasesByValue.values()) {
+            allLeases.addAll(leases);
+        }
+        return allLeases;
+    }
+
+    /**
+     * @return values leased by any owner other than the specified one
+     */
+    public Set<String> getValuesLeasedByOthers(String owner) {
+        Set<String> values = new LinkedHashSet<String>();
+        for (Map.Entry<String, List<Lease>> entry : leasesByValue.entrySet()) {
+            for (Lease lease : entry.getValue()) {
+                if (!lease.owner.equals(owner)) {
+                    values.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return true if the value is now leased by the owner, false if another owner already holds it
+     */
+    public boolean lease(String value, String owner) {
+        return lease(value, owner, 1);
+    }
+
+    /**
+     * Leases a value that can be held by up to the capacity of owners at once.
+     * @return true if the value is now leased by the owner, false if the capacity of other owners already hold it
+     */
+    public boolean lease(String value, String owner, int capacity) {
+        List<Lease> leases = leasesByValue.get(value);
+        if (leases == null) {
+            leases = new ArrayList<Lease>(1);
+            leasesByValue.put(value, leases);
+        }
+        for (Lease lease : leases) {
+            if (lease.owner.equals(owner)) {
+                return true;
+            }
+        }
+        if (leases.size() >= capacity) {
+            return false;
+        }
+        leases.add(new Lease(value, owner, System.currentTimeMillis()));
+        leaseCount ++;
+        lastLeasedValue = value;
+        modifications ++;
+        statistics.recordLeased(value, leases.size(), leaseCount);
+        return true;
+    }
+
+    public boolean release(String value, String owner) {
+        List<Lease> leases = leasesByValue.get(value);
+        if (leases == null) {
+            return false;
+        }
+        for (Iterator<Lease> iterator = leases.iterator(); iterator.hasNext(); ) {
+            Lease lease = iterator.next();
+            if (lease.owner.equals(owner)) {
+                iterator.remove();
+                recordReleased(lease, leases);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases the values held by the owner, including values held by owners scoped to it such as owner/step.
+     * @return number of values released
+     */
+    public int releaseAll(String owner) {
+        return releaseAll(owner, null);
+    }
+
+    /**
+     * Releases the values held by the owner as {@link #releaseAll(String)} does,
+     * recording the result of the owner's build against each value released.
+     * @param result result of the owner's build, null if it isn't known
+     * @return number of values released
+     */
+    public int releaseAll(String owner, Result result) {
+        int released = 0;
+        for (Lease lease : getLeases()) {
+            if (isOwnedBy(lease.owner, owner)) {
+                List<Lease> leases = leasesByValue.get(lease.value);
+                leases.remove(lease);
+                recordReleased(lease, leases);
+                if (result != null) {
+                    recordResult(lease.value, result);
+                }
+                released ++;
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Renews the leases held by the owners so that they don't expire.
+     * @param owners owners whose builds are still active
+     * @return number of leases renewed
+     */
+    public int renewAll(Set<String> owners) {
+        long now = System.currentTimeMillis();
+        int renewed = 0;
+        for (List<Lease> leases : leasesByValue.values()) {
+            for (Lease lease : leases) {
+                if (owners.contains(lease.owner)) {
+                    lease.renewedAt = now;
+                    renewed ++;
+                }
+            }
+        }
+        if (renewed > 0) {
+            modifications ++;
+        }
+        return renewed;
+    }
+
+    /**
+     * Releases the leases of this controller that were last renewed before the time.
+     * Leases of other controllers sharing the store are left to them, as only they renew their leases
+     * and they may use another timeout or none at all.
+     * @return the leases released
+     */
+    public List<Lease> releaseExpired(long renewedBefore) {
+        List<Lease> expiredLeases = new ArrayList<Lease>();
+        for (Lease lease : getLeases()) {
+            if (lease.renewedAt < renewedBefore && !isOtherControllerOwner(lease.owner)) {
+                List<Lease> leases = leasesByValue.get(lease.value);
+                leases.remove(lease);
+                recordReleased(lease, leases);
+                expiredLeases.add(lease);
+            }
+        }
+        return expiredLeases;
+    }
+
+    /**
+     * @return true if the owner was read from a store shared with other controllers and belongs to one of them
+     */
+    static boolean isOtherControllerOwner(String owner) {
+        return owner.indexOf(SharedFileLeaseStore.CONTROLLER_SEPARATOR) >= 0;
+    }
+
+    /**
+     * @return true if the lease owner is the owner or is scoped to it
+     */
+    public static boolean isOwnedBy(String leaseOwner, String owner) {
+        return leaseOwner.equals(owner)
+                || (leaseOwner.startsWith(owner) && leaseOwner.charAt(owner.length()) == '/');
+    }
+
+    /**
+     * @return affinity key the value was last leased with, null if it was last leased without one
+     */
+    public String getAffinityKey(String value) {
+        return affinityKeys.get(value);
+    }
+
+    /**
+     * @param affinityKey key the value is being leased with, null to forget the key it was last leased with
+     */
+    public void setAffinityKey(String value, String affinityKey) {
+        String previousKey = affinityKey != null ? affinityKeys.put(value, affinityKey) : affinityKeys.remove(value);
+        if (affinityKey != null ? !affinityKey.equals(previousKey) : previousKey != null) {
+            modifications ++;
+        }
+    }
+
+    /**
+     * @return values last leased with the affinity key
+     */
+    public Set<String> getValuesWithAffinity(String affinityKey) {
+        Set<String> values = new LinkedHashSet<String>();
+        for (Map.Entry<String, String> entry : affinityKeys.entrySet()) {
+            if (entry.getValue().equals(affinityKey)) {
+                values.add(entry.getKey());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return values with the affinity key they were last leased with
+     */
+    Map<String, String> getAffinityKeys() {
+        return Collections.unmodifiableMap(affinityKeys);
+    }
+
+    /**
+     * Counts a failed build as another failure in a row for the value, a successful or unstable build
+     * clears its failures. Aborted builds say nothing about the value so they are ignored.
+     */
+    public void recordResult(String value, Result result) {
+        if (result == Result.FAILURE) {
+            ValueHealth health = healthByValue.get(value);
+            int failures = health != null ? health.consecutiveFailures + 1 : 1;
+            healthByValue.put(value, new ValueHealth(failures, System.currentTimeMillis()));
+            modifications ++;
+        } else if ((result == Result.SUCCESS || result == Result.UNSTABLE) && healthByValue.remove(value) != null) {
+            modifications ++;
+        }
+    }
+
+    /**
+     * @return failed builds in a row for the value, 0 if its last build didn't fail
+     */
+    public int getConsecutiveFailures(String value) {
+        ValueHealth health = healthByValue.get(value);
+        return health != null ? health.consecutiveFailures : 0;
+    }
+
+    /**
+     * @return time the value last failed a build in milliseconds, 0 if its last build didn't fail
+     */
+    public long getLastFailureTime(String value) {
+        ValueHealth health = healthByValue.get(value);
+        return health != null ? health.lastFailureTime : 0;
+    }
+
+    /**
+     * @return values whose last build failed
+     */
+    public Set<String> getFailingValues() {
+        return new LinkedHashSet<String>(healthByValue.keySet());
+    }
+
+    public Set<String> getQuarantinedValues(QuarantinePolicy policy) {
+        Set<String> values = new LinkedHashSet<String>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ValueHealth> entry : healthByValue.entrySet()) {
+            ValueHealth health = entry.getValue();
+            if (policy.isQuarantined(health.consecutiveFailures, health.lastFailureTime, now)) {
+                values.add(entry.getKey());
+            }
+        }
+        return values;
+    }
+
+    public String getLastLeasedValue() {
+        return lastLeasedValue;
+    }
+
+    /**
+     * @return time the value was last released in milliseconds, 0 if it hasn't been released
+     */
+    public long getReleaseTime(String value) {
+        Long releaseTime = releaseTimes.get(value);
+        return releaseTime != null ? releaseTime : 0;
+    }
+
+    /**
+     * @return view of the released values, least recently released first
+     */
+    public Set<String> getValuesInReleaseOrder() {
+        return Collections.unmodifiableSet(releaseTimes.keySet());
+    }
+
+    /**
+     * @return number of changes made to the leases, used by stores to skip writing unchanged leases
+     */
+    int getModifications() {
+        return modifications;
+    }
+
+    /**
+     * Adds a lease read from a {@link LeaseStore}, without recording it as a new lease.
+     */
+    void restoreLease(String value, String owner, long leasedAt, long renewedAt) {
+        Lease lease = new Lease(value, owner, leasedAt);
+        lease.renewedAt = renewedAt;
+        List<Lease> leases = leasesByValue.get(value);
+        if (leases == null) {
+            leases = new ArrayList<Lease>(1);
+            leasesByValue.put(value, leases);
+        }
+        leases.add(lease);
+        leaseCount ++;
+    }
+
+    /**
+     * Adds a release time read from a {@link LeaseStore}, release times must be restored oldest first.
+     */
+    void restoreReleaseTime(String value, long releaseTime) {
+        releaseTimes.put(value, releaseTime);
+    }
+
+    void restoreHealth(String value, int consecutiveFailures, long lastFailureTime) {
+        healthByValue.put(value, new ValueHealth(consecutiveFailures, lastFailureTime));
+    }
+
+    void restoreAffinityKey(String value, String affinityKey) {
+        affinityKeys.put(value, affinityKey);
+    }
+
+    void restoreLastLeasedValue(String value) {
+        lastLeasedValue = value;
+    }
+
+    public boolean isEmpty() {
+        return leasesByValue.isEmpty();
+    }
+
+    /**
+     * @param remainingLeases leases still held on the value, the value is removed if there are none
+     */
+    private void recordReleased(Lease lease, List<Lease> remainingLeases) {
+        if (remainingLeases.isEmpty()) {
+            leasesByValue.remove(lease.value);
+        }
+        leaseCount --;
+        modifications ++;
+        long releaseTime = System.currentTimeMillis();
+        // removed first so that the value moves to the end of the release order
+        releaseTimes.remove(lease.value);
+        releaseTimes.put(lease.value, releaseTime);
+        statistics.recordReleased(lease.value, releaseTime - lease.leasedAt, remainingLeases.size(), leaseCount);
+    }
+
+    @Override
+    public String toString() {
+        return poolName + " " + leasesByValue.toString();
+    }
+
+    /**
+     * A value held by an owner.
+     */
+    public static class Lease {
+
+        private final String value;
+
+        private final String owner;
+
+        private final long leasedAt;
+
+        private long renewedAt;
+
+        private Lease(String value, String owner, long leasedAt) {
+            this.value = value;
+            this.owner = owner;
+            this.leasedAt = leasedAt;
+            this.renewedAt = leasedAt;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        /**
+         * @return time the lease was taken in milliseconds
+         */
+        public long getLeasedAt() {
+            return leasedAt;
+        }
+
+        /**
+         * @return time the lease was taken or last renewed in milliseconds
+         */
+        public long getRenewedAt() {
+            return renewedAt;
+        }
+
+        @Override
+        public String toString() {
+            return owner;
+        }
+    }
+
+    private static class ValueHealth {
+
+        private final int consecutiveFailures;
+
+        private final long lastFailureTime;
+
+        private ValueHealth(int consecutiveFailures, long lastFailureTime) {
+            this.consecutiveFailures = consecutiveFailures;
+            this.lastFailureTime = lastFailureTime;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.tasks.Builder;
+
+/**
+ * Keeps builds in the queue until their pool values are free, for pool steps that are set to wait in the queue.
+ * Once a value is free it is reserved for the queue item and claimed by the build when its pool step runs.
+ * An item either holds values for all of its pool steps or none of them, so that two items can't each hold
+ * a value the other is waiting for.
+ */
+@Extension
+public class PoolQueueTaskDispatcher extends QueueTaskDispatcher {
+
+    @Override
+    public CauseOfBlockage canRun(Queue.Item item) {
+        if (!(item.task instanceof Project)) {
+            return null;
+        }
+        for (Builder builder : ((Project<?, ?>) item.task).getBuilders()) {
+            if (!(builder instanceof ParameterPoolBuilder)) {
+                continue;
+            }
+            ParameterPoolBuilder poolBuilder = (ParameterPoolBuilder) builder;
+            if (!poolBuilder.isWaitInQueue()) {
+                continue;
+            }
+            CauseOfBlockage blockage = poolBuilder.reserve(item);
+            if (blockage != null) {
+                releaseReservations(item);
+                return blockage;
+            }
+        }
+        return null;
+    }
+
+    private static void releaseReservations(Queue.Item item) {
+        PoolReservationAction reservation = item.getAction(PoolReservationAction.class);
+        if (reservation != null && !reservation.isEmpty()) {
+            PoolLeaseRegistry.getInstance().releaseAll(reservation.getOwner());
+            reservation.clear();
+        }
+    }
+
+    /**
+     * Waiting for a value of a pool to be free.
+     */
+    public static class PoolExhausted extends CauseOfBlockage {
+
+        private final String poolName;
+
+        public PoolExhausted(String poolName) {
+            this.poolName = poolName;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Waiting for a free value in parameter pool " + poolName;
+        }
+    }
+
+    /**
+     * Waiting for the build history of the projects a pool uses to be loaded.
+     */
+    public static class PoolHistoryLoading extends CauseOfBlockage {
+
+        private final String poolName;
+
+        public PoolHistoryLoading(String poolName) {
+            this.poolName = poolName;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Loading the build history for parameter pool " + poolName;
+        }
+    }
+
+    /**
+     * Releases values reserved for queue items that are cancelled.
+     * Values reserved for items that start building are released when the build completes.
+     */
+    @Extension
+    public static class ReservationReleaser extends QueueListener {
+
+        @Override
+        public void onLeft(Queue.LeftItem item) {
+            if (item.isCancelled()) {
+                PoolLeaseRegistry.getInstance().releaseAll(PoolReservationAction.ownerFor(item));
+            }
+        }
+    }
+}
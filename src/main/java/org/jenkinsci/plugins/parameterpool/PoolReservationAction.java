@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Queue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pool values reserved for a queue item by {@link PoolQueueTaskDispatcher}.
+ * Copied to the build when it starts, so that the build's pool steps can claim the reserved values.
+ */
+public class PoolReservationAction extends InvisibleAction {
+
+    static final String OWNER_PREFIX = "queue:";
+
+    private final String owner;
+
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    /**
+     * Pools the queue item has waited for, so that each wait is only counted once.
+     */
+    private transient Set<String> exhaustedPools;
+
+    public PoolReservationAction(String owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return lease owner used for values reserved for the queue item
+     */
+    public static String ownerFor(Queue.Item item) {
+        return ownerFor(item.id);
+    }
+
+    public static String ownerFor(long queueId) {
+        return OWNER_PREFIX + queueId;
+    }
+
+    /**
+     * @return id of the queue item the owner was created for, -1 if the owner isn't for a queue item
+     */
+    public static long queueIdOf(String owner) {
+        if (!owner.startsWith(OWNER_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(owner.substring(OWNER_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public synchronized void put(String poolName, String value) {
+        values.put(poolName, value);
+    }
+
+    public synchronized String get(String poolName) {
+        return values.get(poolName);
+    }
+
+    public synchronized boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /**
+     * Forgets the reserved values, once their leases have been released.
+     */
+    public synchronized void clear() {
+        values.clear();
+    }
+
+    /**
+     * Records that the queue item is waiting for a value of the pool.
+     */
+    public synchronized void markExhausted(String poolName) {
+        if (exhaustedPools == null) {
+            exhaustedPools = new HashSet<String>();
+        }
+        exhaustedPools.add(poolName);
+    }
+
+    /**
+     * @return true if the queue item has already waited for a value of the pool
+     */
+    public synchronized boolean isExhausted(String poolName) {
+        return exhaustedPools != null && exhaustedPools.contains(poolName);
+    }
+}
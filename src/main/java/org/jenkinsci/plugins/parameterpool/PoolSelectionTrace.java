@@ -0,0 +1,199 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Record of how a pool value was selected, the builds that were checked and the values they used.
+ * Only a one line summary is written to the build log, the full trace is shown by {@link PoolSelectionTraceAction}.
+ */
+public class PoolSelectionTrace {
+
+    /**
+     * Most checked builds kept, as the trace is saved with the build.
+     */
+    static final int CHECKED_BUILDS_KEPT = 100;
+
+    private final String poolName;
+
+    private final String definition;
+
+    private final List<CheckedBuild> checkedBuilds = new ArrayList<CheckedBuild>();
+
+    private int checkedBuildCount;
+
+    private List<String> valuesFromRunningBuilds = Collections.emptyList();
+
+    private List<String> valuesFromFunctionalBuilds = Collections.emptyList();
+
+    private List<String> valuesFromFailedBuilds = Collections.emptyList();
+
+    private List<String> valuesNotInPool = Collections.emptyList();
+
+    private List<String> quarantinedValues = Collections.emptyList();
+
+    private String affinityKey;
+
+    private List<String> affinityValues = Collections.emptyList();
+
+    private String selectedValue;
+
+    public PoolSelectionTrace(String poolName, String definition) {
+        this.poolName = poolName;
+        this.definition = definition;
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    public String getDefinition() {
+        return definition;
+    }
+
+    /**
+     * @param value value used by the build, null if the build doesn't use the pool
+     */
+    public void addCheckedBuild(String buildId, String value, String result) {
+        checkedBuildCount++;
+        if (checkedBuilds.size() < CHECKED_BUILDS_KEPT) {
+            checkedBuilds.add(new CheckedBuild(buildId, value, result));
+        }
+    }
+
+    /**
+     * @return the first {@link #CHECKED_BUILDS_KEPT} builds checked
+     */
+    public List<CheckedBuild> getCheckedBuilds() {
+        return Collections.unmodifiableList(checkedBuilds);
+    }
+
+    /**
+     * @return number of builds checked, including those not kept
+     */
+    public int getCheckedBuildCount() {
+        return checkedBuildCount;
+    }
+
+    public void setPoolValues(List<String> valuesFromRunningBuilds, List<String> valuesFromFunctionalBuilds,
+                              List<String> valuesFromFailedBuilds, List<String> valuesNotInPool) {
+        this.valuesFromRunningBuilds = valuesFromRunningBuilds;
+        this.valuesFromFunctionalBuilds = valuesFromFunctionalBuilds;
+        this.valuesFromFailedBuilds = valuesFromFailedBuilds;
+        this.valuesNotInPool = valuesNotInPool;
+    }
+
+    public List<String> getValuesFromRunningBuilds() {
+        return valuesFromRunningBuilds;
+    }
+
+    public List<String> getValuesFromFunctionalBuilds() {
+        return valuesFromFunctionalBuilds;
+    }
+
+    public List<String> getValuesFromFailedBuilds() {
+        return valuesFromFailedBuilds;
+    }
+
+    public List<String> getValuesNotInPool() {
+        return valuesNotInPool;
+    }
+
+    /**
+     * @return values left out of selection as they failed too many builds in a row
+     */
+    public List<String> getQuarantinedValues() {
+        return quarantinedValues;
+    }
+
+    public void setQuarantinedValues(List<String> quarantinedValues) {
+        this.quarantinedValues = quarantinedValues;
+    }
+
+    /**
+     * @return affinity key of the selection, null if none was set
+     */
+    public String getAffinityKey() {
+        return affinityKey;
+    }
+
+    public void setAffinityKey(String affinityKey) {
+        this.affinityKey = affinityKey;
+    }
+
+    /**
+     * @return values last used with the affinity key
+     */
+    public List<String> getAffinityValues() {
+        return affinityValues;
+    }
+
+    public void setAffinityValues(List<String> affinityValues) {
+        this.affinityValues = affinityValues;
+    }
+
+    /**
+     * @return selected value, null if every value was in use
+     */
+    public String getSelectedValue() {
+        return selectedValue;
+    }
+
+    public void setSelectedValue(String selectedValue) {
+        this.selectedValue = selectedValue;
+    }
+
+    /**
+     * @return single line description of the selection for the build log
+     */
+    public String getSummary() {
+        String outcome = selectedValue != null ? "Selected " + selectedValue : "No value free";
+        String summary = outcome + " for " + poolName + " after checking " + checkedBuildCount + " builds: "
+                + valuesFromRunningBuilds.size() + " in use, "
+                + valuesFromFunctionalBuilds.size() + " from functional builds, "
+                + valuesFromFailedBuilds.size() + " from non functional builds";
+        if (affinityKey != null) {
+            summary += ", affinity key " + affinityKey + " last used on " + affinityValues;
+        }
+        if (!quarantinedValues.isEmpty()) {
+            summary += ", quarantined " + quarantinedValues;
+        }
+        return summary;
+    }
+
+    @Override
+    public String toString() {
+        return getSummary();
+    }
+
+    /**
+     * A build checked while selecting a value.
+     */
+    public static class CheckedBuild {
+
+        private final String buildId;
+
+        private final String value;
+
+        private final String result;
+
+        private CheckedBuild(String buildId, String value, String result) {
+            this.buildId = buildId;
+            this.value = value;
+            this.result = result;
+        }
+
+        public String getBuildId() {
+            return buildId;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public String getResult() {
+            return result;
+        }
+    }
+}
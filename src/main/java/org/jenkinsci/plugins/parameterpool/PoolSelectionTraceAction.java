@@ -0,0 +1,65 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows how each of a build's pool values was selected.
+ * The traces are only rendered when the page is opened.
+ */
+public class PoolSelectionTraceAction implements RunAction2 {
+
+    private final List<PoolSelectionTrace> traces = new ArrayList<PoolSelectionTrace>();
+
+    private transient Run<?, ?> run;
+
+    public String getIconFileName() {
+        return "clipboard.png";
+    }
+
+    public String getDisplayName() {
+        return "Pool Selection";
+    }
+
+    public String getUrlName() {
+        return "poolSelection";
+    }
+
+    public void onAttached(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    public void onLoad(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    /**
+     * Adds the trace to the run's action, creating the action if needed.
+     */
+    public static void addTo(Run<?, ?> run, PoolSelectionTrace trace) {
+        PoolSelectionTraceAction action;
+        synchronized (run) {
+            action = run.getAction(PoolSelectionTraceAction.class);
+            if (action == null) {
+                action = new PoolSelectionTraceAction();
+                run.addAction(action);
+            }
+        }
+        action.add(trace);
+    }
+
+    public synchronized void add(PoolSelectionTrace trace) {
+        traces.add(trace);
+    }
+
+    public synchronized List<PoolSelectionTrace> getTraces() {
+        return new ArrayList<PoolSelectionTrace>(traces);
+    }
+}
@@ -0,0 +1,508 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of the pool values used by recent builds of each job.
+ * Kept up to date by {@link PoolStateListener} so that selecting a value is a lookup instead of a scan of the
+ * job's build history. A job's history is only loaded once, the first time its records are requested.
+ *
+ * Once a job's history has been loaded, changes to it are written to a {@link PoolJournal} so that after a
+ * restart the history can be restored from the journal instead of the job's build records.
+ */
+public class PoolStateIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(PoolStateIndex.class.getName());
+
+    /**
+     * Number of completed builds per job that are kept, running builds are always kept.
+     */
+    static final int COMPLETED_BUILDS_KEPT = 21;
+
+    private static final JenkinsScoped<PoolStateIndex> INSTANCE = new JenkinsScoped<PoolStateIndex>() {
+        @Override
+        protected PoolStateIndex create(Jenkins jenkins) {
+            return new PoolStateIndex(jenkins != null ? new File(jenkins.getRootDir(), "parameter-pool/journals") : null);
+        }
+    };
+
+    private final ConcurrentMap<String, JobHistory> histories = new ConcurrentHashMap<String, JobHistory>();
+
+    /**
+     * Names of the jobs whose history is being loaded in the background.
+     */
+    private final Set<String> jobsLoading = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Versions versions = new Versions();
+
+    private final File journalDirectory;
+
+    /**
+     * @param journalDirectory directory for job journals, null if journals shouldn't be written
+     */
+    public PoolStateIndex(File journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    public static PoolStateIndex getInstance() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * @return records for the job's running builds and most recent completed builds, most recently started first
+     */
+    public List<PoolBuildRecord> getRecords(Job<?, ?> job) {
+        JobHistory history = historyFor(job.getFullName());
+        history.seedIfNeeded(job);
+        return history.getRecords();
+    }
+
+    /**
+     * @return true if the job's history is loaded, so that getting its records won't read from disk
+     */
+    public boolean isLoaded(Job<?, ?> job) {
+        JobHistory history = histories.get(job.getFullName());
+        return history != null && history.isSeeded();
+    }
+
+    /**
+     * Loads the history of the jobs on a background thread, for callers that mustn't wait on the disk,
+     * e.g. while the queue is locked.
+     * @return true if the history of every job is already loaded
+     */
+    public boolean loadInBackground(List<? extends Job<?, ?>> jobs) {
+        boolean loaded = true;
+        for (final Job<?, ?> job : jobs) {
+            if (isLoaded(job)) {
+                continue;
+            }
+            loaded = false;
+            if (jobsLoading.add(job.getFullName())) {
+                Timer.get().submit(new Runnable() {
+                    public void run() {
+                        try {
+                            getRecords(job);
+                        } finally {
+                            jobsLoading.remove(job.getFullName());
+                        }
+                    }
+                });
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * @return records of builds of any job that used a value for the pool name, most recently started first
+     */
+    public List<PoolBuildRecord> getRecordsUsing(String poolName) {
+        List<PoolBuildRecord> records = new ArrayList<PoolBuildRecord>();
+        for (JobHistory history : histories.values()) {
+            for (PoolBuildRecord record : history.getRecords()) {
+                if (record.getValue(poolName) != null) {
+                    records.add(record);
+                }
+            }
+        }
+        Collections.sort(records, PoolBuildRecord.NEWEST_FIRST);
+        return records;
+    }
+
+    /**
+     * @return number that changes whenever any record changes
+     */
+    public long getVersion() {
+        return versions.get();
+    }
+
+    /**
+     * @return number that changes whenever a record with a value for the pool name changes, is added or is dropped
+     */
+    public long getVersion(String poolName) {
+        return versions.get(poolName);
+    }
+
+    public void recordStarted(Run<?, ?> run) {
+        historyFor(run).recordFor(run);
+    }
+
+    public void recordValue(Run<?, ?> run, String name, String value) {
+        historyFor(run).putValue(run, name, value, false);
+    }
+
+    /**
+     * Records a value for the pool name alongside any values the run already has for it,
+     * e.g. for parallel blocks that each select from the same pool.
+     */
+    public void recordAddedValue(Run<?, ?> run, String name, String value) {
+        historyFor(run).putValue(run, name, value, true);
+    }
+
+    /**
+     * Records that the run released a value for the pool name before completing.
+     */
+    public void recordReleased(Run<?, ?> run, String name, String value, Result result) {
+        historyFor(run).release(run, name, value, result);
+    }
+
+    public void recordCompleted(Run<?, ?> run) {
+        historyFor(run).complete(run);
+    }
+
+    public void recordDeleted(Run<?, ?> run) {
+        JobHistory history = histories.get(run.getParent().getFullName());
+        if (history != null) {
+            history.remove(run.getNumber());
+        }
+    }
+
+    /**
+     * Drops the records and journal of a job, they are loaded again from the job's builds when next needed.
+     */
+    public void forgetJob(String jobName) {
+        JobHistory history = histories.remove(jobName);
+        versions.changed(history != null ? history.getRecords() : Collections.<PoolBuildRecord>emptyList());
+        PoolJournal journal = history != null ? history.journal : journalFor(jobName);
+        if (journal != null) {
+            journal.delete();
+        }
+    }
+
+    /**
+     * @return history for the run's job, restored from its journal if the job has one
+     */
+    private JobHistory historyFor(Run<?, ?> run) {
+        JobHistory history = historyFor(run.getParent().getFullName());
+        history.seedFromJournalIfPresent(run.getParent());
+        return history;
+    }
+
+    private JobHistory historyFor(String jobName) {
+        JobHistory history = histories.get(jobName);
+        if (history != null) {
+            return history;
+        }
+        JobHistory newHistory = new JobHistory(jobName, journalFor(jobName), versions);
+        history = histories.putIfAbsent(jobName, newHistory);
+        return history != null ? history : newHistory;
+    }
+
+    private PoolJournal journalFor(String jobName) {
+        if (journalDirectory == null) {
+            return null;
+        }
+        try {
+            return new PoolJournal(new File(journalDirectory, URLEncoder.encode(jobName, "UTF-8") + ".journal"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static PoolBuildRecord createRecord(Run<?, ?> run) {
+        PoolBuildRecord record = new PoolBuildRecord(run.getParent().getFullName(), run.getNumber(),
+                run.getStartTimeInMillis());
+        ParameterPoolBuilder.ParameterEnvAction envAction = run.getAction(ParameterPoolBuilder.ParameterEnvAction.class);
+        if (envAction != null) {
+            for (String name : envAction.getNames()) {
+                record.putValue(name, envAction.getValue(name));
+            }
+        }
+        if (!run.isBuilding()) {
+            record.setResult(run.getResult());
+        }
+        return record;
+    }
+
+    private static class JobHistory {
+
+        private final String jobName;
+
+        private final Map<Integer, PoolBuildRecord> records =
+                new TreeMap<Integer, PoolBuildRecord>(Collections.<Integer>reverseOrder());
+
+        /**
+         * Journal for the job, only written to once the history has been seeded.
+         */
+        private final PoolJournal journal;
+
+        private boolean seeded;
+
+        private final Versions versions;
+
+        private JobHistory(String jobName, PoolJournal journal, Versions versions) {
+            this.jobName = jobName;
+            this.journal = journal;
+            this.versions = versions;
+        }
+
+        private synchronized void seedFromJournalIfPresent(Job<?, ?> job) {
+            if (!seeded && journal != null && journal.exists()) {
+                seedIfNeeded(job);
+            }
+        }
+
+        private synchronized boolean isSeeded() {
+            return seeded;
+        }
+
+        private synchronized void seedIfNeeded(Job<?, ?> job) {
+            if (seeded) {
+                return;
+            }
+            if (journal != null && journal.exists() && seedFromJournal(job)) {
+                seeded = true;
+                return;
+            }
+
+            int completedBuilds = 0;
+            for (Run<?, ?> run : job.getBuilds()) {
+                if (completedBuilds >= COMPLETED_BUILDS_KEPT) {
+                    break;
+                }
+                PoolBuildRecord record = records.get(run.getNumber());
+                if (record == null || record.getStartTimeInMillis() != run.getStartTimeInMillis()) {
+                    record = replace(record, createRecord(run));
+                }
+                if (!record.isBuilding()) {
+                    completedBuilds ++;
+                }
+            }
+            seeded = true;
+            compactJournal();
+        }
+
+        /**
+         * @return false if the journal couldn't be read
+         */
+        private boolean seedFromJournal(Job<?, ?> job) {
+            Map<Integer, PoolBuildRecord> journalRecords;
+            try {
+                journalRecords = journal.read(jobName);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read " + journal.getFile() + ", loading build records instead", e);
+                journal.delete();
+                return false;
+            }
+            int newestJournaledNumber = 0;
+            for (PoolBuildRecord journalRecord : journalRecords.values()) {
+                newestJournaledNumber = Math.max(newestJournaledNumber, journalRecord.getNumber());
+                if (!records.containsKey(journalRecord.getNumber())) {
+                    replace(null, journalRecord);
+                }
+            }
+
+            // events not yet on disk when the operating system stopped are lost, so builds started after the newest
+            // journaled build and builds still running are checked against their build records
+            int completedBuilds = 0;
+            for (Run<?, ?> run : job.getBuilds()) {
+                if (!run.isBuilding()) {
+                    if (run.getNumber() <= newestJournaledNumber || completedBuilds >= COMPLETED_BUILDS_KEPT) {
+                        break;
+                    }
+                    completedBuilds ++;
+                }
+                PoolBuildRecord record = records.get(run.getNumber());
+                if (record == null || record.getStartTimeInMillis() != run.getStartTimeInMillis()) {
+                    replace(record, createRecord(run));
+                }
+            }
+
+            // builds that were running when the journal was last written may have finished or used more values since
+            for (Iterator<PoolBuildRecord> iterator = records.values().iterator(); iterator.hasNext(); ) {
+                PoolBuildRecord record = iterator.next();
+                if (!record.isBuilding()) {
+                    continue;
+                }
+                Run<?, ?> run = job.getBuildByNumber(record.getNumber());
+                if (run == null) {
+                    iterator.remove();
+                    versions.changed(record);
+                    continue;
+                }
+                PoolBuildRecord runRecord = createRecord(run);
+                for (String name : runRecord.getNames()) {
+                    record.addValue(name, runRecord.getValue(name));
+                }
+                if (!run.isBuilding()) {
+                    record.setResult(run.getResult());
+                }
+                versions.changed(record);
+            }
+            trim();
+            compactJournal();
+            return true;
+        }
+
+        private synchronized PoolBuildRecord recordFor(Run<?, ?> run) {
+            PoolBuildRecord record = records.get(run.getNumber());
+            // a record with another start time was left by a deleted build or job that had the same number
+            if (record == null || record.getStartTimeInMillis() != run.getStartTimeInMillis()) {
+                record = replace(record, createRecord(run));
+                if (seeded && journal != null) {
+                    journal.appendStarted(record);
+                }
+            }
+            return record;
+        }
+
+        private synchronized void putValue(Run<?, ?> run, String name, String value, boolean added) {
+            PoolBuildRecord record = recordFor(run);
+            if (added) {
+                record.addValue(name, value);
+            } else {
+                record.putValue(name, value);
+            }
+            versions.changed(record);
+            if (seeded && journal != null) {
+                journal.appendValue(record, name, record.getValue(name));
+            }
+        }
+
+        private synchronized void release(Run<?, ?> run, String name, String value, Result result) {
+            PoolBuildRecord record = recordFor(run);
+            record.release(name, value, result);
+            versions.changed(record);
+            if (seeded && journal != null) {
+                journal.appendReleased(record, name, value, result);
+            }
+        }
+
+        private synchronized void complete(Run<?, ?> run) {
+            PoolBuildRecord record = recordFor(run);
+            record.setResult(run.getResult());
+            versions.changed(record);
+            if (seeded && journal != null) {
+                journal.appendResult(record);
+            }
+            trim();
+            if (seeded && journal != null && journal.needsCompaction()) {
+                compactJournal();
+            }
+        }
+
+        private synchronized void remove(int number) {
+            PoolBuildRecord record = records.remove(number);
+            if (record == null) {
+                return;
+            }
+            versions.changed(record);
+            if (seeded && journal != null) {
+                journal.appendDeleted(number);
+            }
+        }
+
+        private synchronized void trim() {
+            int completedBuilds = 0;
+            for (Iterator<PoolBuildRecord> iterator = records.values().iterator(); iterator.hasNext(); ) {
+                PoolBuildRecord record = iterator.next();
+                if (record.isBuilding()) {
+                    continue;
+                }
+                if (completedBuilds >= COMPLETED_BUILDS_KEPT) {
+                    iterator.remove();
+                    versions.changed(record);
+                } else {
+                    completedBuilds ++;
+                }
+            }
+        }
+
+        private void compactJournal() {
+            if (journal == null) {
+                return;
+            }
+            try {
+                List<PoolBuildRecord> oldestFirst = new ArrayList<PoolBuildRecord>(records.values());
+                Collections.reverse(oldestFirst);
+                journal.compact(oldestFirst);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to write " + journal.getFile(), e);
+                journal.delete();
+            }
+        }
+
+        /**
+         * @param record record being replaced, null if there is no record for the build yet
+         * @return the new record
+         */
+        private PoolBuildRecord replace(PoolBuildRecord record, PoolBuildRecord newRecord) {
+            if (record != null) {
+                versions.changed(record);
+            }
+            records.put(newRecord.getNumber(), newRecord);
+            versions.changed(newRecord);
+            return newRecord;
+        }
+
+        private synchronized List<PoolBuildRecord> getRecords() {
+            List<PoolBuildRecord> recordList = new ArrayList<PoolBuildRecord>(records.values());
+            Collections.sort(recordList, PoolBuildRecord.NEWEST_FIRST);
+            return recordList;
+        }
+
+        @Override
+        public String toString() {
+            return jobName;
+        }
+    }
+
+    /**
+     * Versions of the records, for the whole index and for each pool name the records have values for.
+     */
+    private static class Versions {
+
+        private final AtomicLong version = new AtomicLong();
+
+        private final ConcurrentMap<String, AtomicLong> poolVersions = new ConcurrentHashMap<String, AtomicLong>();
+
+        private long get() {
+            return version.get();
+        }
+
+        private long get(String poolName) {
+            AtomicLong poolVersion = poolVersions.get(poolName);
+            return poolVersion != null ? poolVersion.get() : 0;
+        }
+
+        private void changed(Collection<PoolBuildRecord> records) {
+            version.incrementAndGet();
+            for (PoolBuildRecord record : records) {
+                changed(record);
+            }
+        }
+
+        private void changed(PoolBuildRecord record) {
+            version.incrementAndGet();
+            for (String poolName : record.getNames()) {
+                AtomicLong poolVersion = poolVersions.get(poolName);
+                if (poolVersion == null) {
+                    poolVersions.putIfAbsent(poolName, new AtomicLong());
+                    poolVersion = poolVersions.get(poolName);
+                }
+                poolVersion.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Keeps {@link PoolStateIndex} up to date as builds start, complete and are deleted.
+ */
+@Extension
+public class PoolStateListener extends RunListener<Run> {
+
+    public PoolStateListener() {
+        super(Run.class);
+    }
+
+    @Override
+    public void onStarted(Run run, TaskListener listener) {
+        PoolStateIndex.getInstance().recordStarted(run);
+    }
+
+    @Override
+    public void onCompleted(Run run, TaskListener listener) {
+        PoolStateIndex.getInstance().recordCompleted(run);
+    }
+
+    @Override
+    public void onDeleted(Run run) {
+        PoolStateIndex.getInstance().recordDeleted(run);
+    }
+
+    /**
+     * Drops indexed records of jobs that are renamed, moved or deleted.
+     */
+    @Extension
+    public static class JobListener extends ItemListener {
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            PoolStateIndex.getInstance().forgetJob(oldFullName);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            PoolStateIndex.getInstance().forgetJob(item.getFullName());
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocation statistics for a pool since the controller started, or since the pool was last dropped by
+ * {@link PoolLeaseRegistry#pruneStatistics(long)} for being idle.
+ * Statistics are only kept for the values of the pool's current definition and values still leased.
+ */
+@ExportedBean
+public class PoolStatistics {
+
+    private final String poolName;
+
+    /**
+     * Time taken to select and lease a value, in microseconds.
+     */
+    private final Histogram selectionLatency = new Histogram(100, 1000, 10000, 100000, 1000000);
+
+    /**
+     * Time a value was leased for, in seconds.
+     */
+    private final Histogram holdTime = new Histogram(60, 600, 1800, 3600, 6 * 3600);
+
+    private final AtomicLong allocations = new AtomicLong();
+
+    private final AtomicLong exhaustions = new AtomicLong();
+
+    private final AtomicLong affinityRequests = new AtomicLong();
+
+    private final AtomicLong affinityHits = new AtomicLong();
+
+    private final ConcurrentMap<String, ValueStatistics> values = new ConcurrentHashMap<String, ValueStatistics>();
+
+    private volatile String definition;
+
+    /**
+     * Pool of the current definition, values of earlier definitions are dropped once it changes.
+     */
+    private volatile PoolValueSet pool;
+
+    private volatile long lastUsedMillis = System.currentTimeMillis();
+
+    private volatile int poolSize;
+
+    private volatile int leasedValues;
+
+    public PoolStatistics(String poolName) {
+        this.poolName = poolName;
+    }
+
+    /**
+     * Records the values of the pool when a value is requested, the values can change between builds.
+     * Statistics of values no longer in the pool are dropped once they aren't leased.
+     */
+    public void recordDefinition(PoolValueSet pool) {
+        lastUsedMillis = System.currentTimeMillis();
+        this.definition = pool.getDefinition();
+        if (pool == this.pool) {
+            return;
+        }
+        this.pool = pool;
+        for (Iterator<ValueStatistics> iterator = values.values().iterator(); iterator.hasNext(); ) {
+            ValueStatistics valueStatistics = iterator.next();
+            if (valueStatistics.activeLeases == 0 && !pool.contains(valueStatistics.value)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return time a value was last requested, leased or released
+     */
+    public long getLastUsedMillis() {
+        return lastUsedMillis;
+    }
+
+    public void recordSelection(long latencyNanos, int poolSize) {
+        selectionLatency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        allocations.incrementAndGet();
+        this.poolSize = poolSize;
+    }
+
+    public void recordExhausted(int poolSize) {
+        exhaustions.incrementAndGet();
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Records a value selected for an affinity key.
+     * @param hit true if the value was last used with the same key
+     */
+    public void recordAffinity(boolean hit) {
+        affinityRequests.incrementAndGet();
+        if (hit) {
+            affinityHits.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param valueLeases leases now held on the value
+     * @param leasedValues leases now held on every value of the pool
+     */
+    void recordLeased(String value, int valueLeases, int leasedValues) {
+        lastUsedMillis = System.currentTimeMillis();
+        valueStatisticsFor(value).recordLeased(valueLeases);
+        this.leasedValues = leasedValues;
+    }
+
+    /**
+     * @param valueLeases leases still held on the value
+     * @param leasedValues leases still held on every value of the pool
+     */
+    void recordReleased(String value, long holdMillis, int valueLeases, int leasedValues) {
+        lastUsedMillis = System.currentTimeMillis();
+        holdTime.record(TimeUnit.MILLISECONDS.toSeconds(holdMillis));
+        valueStatisticsFor(value).recordReleased(holdMillis, valueLeases);
+        this.leasedValues = leasedValues;
+    }
+
+    @Exported
+    public String getName() {
+        return poolName;
+    }
+
+    /**
+     * @return values of the pool when a value was last requested, null if no value has been requested
+     */
+    @Exported
+    public String getDefinition() {
+        return definition;
+    }
+
+    @Exported
+    public Histogram getSelectionLatencyMicros() {
+        return selectionLatency;
+    }
+
+    @Exported
+    public Histogram getHoldTimeSeconds() {
+        return holdTime;
+    }
+
+    @Exported
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * @return number of times a value was requested when every value was in use
+     */
+    @Exported
+    public long getExhaustions() {
+        return exhaustions.get();
+    }
+
+    /**
+     * @return number of values selected for an affinity key
+     */
+    @Exported
+    public long getAffinityRequests() {
+        return affinityRequests.get();
+    }
+
+    /**
+     * @return number of values selected for an affinity key that were last used with the same key
+     */
+    @Exported
+    public long getAffinityHits() {
+        return affinityHits.get();
+    }
+
+    /**
+     * @return percentage of values selected for an affinity key that were last used with the same key
+     */
+    @Exported
+    public int getAffinityHitRate() {
+        long requests = affinityRequests.get();
+        return requests == 0 ? 0 : (int) (affinityHits.get() * 100 / requests);
+    }
+
+    /**
+     * @return size of the pool when a value was last requested, values that can be leased more than once
+     * count once for each lease they can hold
+     */
+    @Exported
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @return number of leases held, a value leased by more than one build counts once for each lease
+     */
+    @Exported
+    public int getLeasedValues() {
+        return leasedValues;
+    }
+
+    /**
+     * @return percentage of the pool currently leased
+     */
+    @Exported
+    public int getUtilization() {
+        int size = poolSize;
+        return size == 0 ? 0 : Math.min(100, leasedValues * 100 / size);
+    }
+
+    @Exported
+    public List<ValueStatistics> getValues() {
+        List<ValueStatistics> valueStatistics = new ArrayList<ValueStatistics>(values.values());
+        Collections.sort(valueStatistics, new Comparator<ValueStatistics>() {
+            public int compare(ValueStatistics firstValue, ValueStatistics secondValue) {
+                return firstValue.value.compareTo(secondValue.value);
+            }
+        });
+        return valueStatistics;
+    }
+
+    private ValueStatistics valueStatisticsFor(String value) {
+        ValueStatistics valueStatistics = values.get(value);
+        if (valueStatistics != null) {
+            return valueStatistics;
+        }
+        ValueStatistics newValueStatistics = new ValueStatistics(value);
+        valueStatistics = values.putIfAbsent(value, newValueStatistics);
+        return valueStatistics != null ? valueStatistics : newValueStatistics;
+    }
+
+    /**
+     * How much a single pool value has been used.
+     */
+    @ExportedBean
+    public static class ValueStatistics {
+
+        private final String value;
+
+        private final AtomicLong leases = new AtomicLong();
+
+        private final AtomicLong totalHoldMillis = new AtomicLong();
+
+        private volatile int activeLeases;
+
+        private ValueStatistics(String value) {
+            this.value = value;
+        }
+
+        private void recordLeased(int activeLeases) {
+            leases.incrementAndGet();
+            this.activeLeases = activeLeases;
+        }
+
+        private void recordReleased(long holdMillis, int activeLeases) {
+            totalHoldMillis.addAndGet(holdMillis);
+            this.activeLeases = activeLeases;
+        }
+
+        @Exported
+        public String getValue() {
+            return value;
+        }
+
+        @Exported
+        public long getLeases() {
+            return leases.get();
+        }
+
+        @Exported
+        public long getTotalHoldSeconds() {
+            return TimeUnit.MILLISECONDS.toSeconds(totalHoldMillis.get());
+        }
+
+        @Exported
+        public boolean isLeased() {
+            return activeLeases > 0;
+        }
+
+        /**
+         * @return number of builds currently holding the value
+         */
+        @Exported
+        public int getActiveLeases() {
+            return activeLeases;
+        }
+    }
+}
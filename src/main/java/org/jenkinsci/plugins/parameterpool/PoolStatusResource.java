@@ -0,0 +1,172 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Job;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read only status of a pool, showing the values free, the values used by running, functional and failed builds,
+ * the values quarantined and the values draining, which are still leased but no longer in the pool, e.g. after being
+ * removed from a pool values file.
+ *
+ * The status is built from {@link PoolStateIndex} and the current leases. The histories of the jobs with a build step
+ * using a global pool are loaded into the index on the first request, for other pools only the histories already
+ * loaded are included, which are those of jobs that have built since Jenkins started. Only builds of jobs the caller
+ * can read are included. A value is free while fewer builds hold it than its capacity.
+ *
+ * Responses carry an ETag derived from the version of the pool's records in the index, the leased and quarantined
+ * values, the pool values and the caller, so a client polling with If-None-Match gets a not modified response without
+ * the status being built. Builds of jobs that don't use the pool leave the tag unchanged.
+ */
+public class PoolStatusResource {
+
+    private final String poolName;
+
+    public PoolStatusResource(String poolName) {
+        this.poolName = poolName;
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        String definition = findDefinition();
+        if (definition == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "No pool named " + poolName);
+            return;
+        }
+        PoolStateIndex index = PoolStateIndex.getInstance();
+        GlobalPoolDefinition globalPool = ParameterPoolConfiguration.get().getPool(poolName);
+        if (globalPool != null) {
+            for (Job<?, ?> job : ProjectResolver.getInstance().getUsersOf(poolName)) {
+                index.getRecords(job);
+            }
+        }
+        // read the version before the records so that a concurrent change can only make the tag stale
+        long version = index.getVersion(poolName);
+        PoolLeaseRegistry leaseRegistry = PoolLeaseRegistry.getInstance();
+        QuarantinePolicy quarantinePolicy = ParameterPoolConfiguration.get().getQuarantinePolicy();
+        Map<String, Integer> leaseCounts = leaseRegistry.getLeaseCounts(poolName);
+        // quarantines end as time passes without any record or lease changing
+        Set<String> quarantinedValues = leaseRegistry.getQuarantinedValues(poolName, quarantinePolicy);
+        String entityTag = entityTag(version, leaseCounts, quarantinedValues,
+                ParsedPoolCache.getInstance().getRevision(definition), Jenkins.getAuthentication().getName());
+        rsp.setHeader("ETag", entityTag);
+        rsp.setHeader("Cache-Control", "no-cache");
+        if (entityTag.equals(req.getHeader("If-None-Match"))) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        PoolValueSet pool = ParsedPoolCache.getInstance().get(definition);
+        PoolValueSelector selector = new PoolValueSelector(poolName, pool, false);
+        selector.setQuarantinePolicy(quarantinePolicy);
+        PoolSelectionTrace trace = selector.describe(readableRecords(index.getRecordsUsing(poolName)).iterator());
+        JSONObject status = new JSONObject();
+        status.put("name", poolName);
+        status.put("definition", definition);
+        status.put("free", JSONArray.fromObject(freeValues(pool, trace, leaseCounts)));
+        status.put("running", JSONArray.fromObject(trace.getValuesFromRunningBuilds()));
+        status.put("functional", JSONArray.fromObject(trace.getValuesFromFunctionalBuilds()));
+        status.put("failed", JSONArray.fromObject(trace.getValuesFromFailedBuilds()));
+        status.put("quarantined", JSONArray.fromObject(trace.getQuarantinedValues()));
+        status.put("draining", JSONArray.fromObject(drainingValues(pool, leaseCounts)));
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(status.toString());
+    }
+
+    static String entityTag(long version, Map<String, Integer> leaseCounts, Set<String> quarantinedValues,
+                             String definitionRevision, String caller) {
+        return "\"" + version + "-" + Integer.toHexString(leaseCounts.hashCode())
+                + "-" + Integer.toHexString(quarantinedValues.hashCode())
+                + "-" + Integer.toHexString(definitionRevision.hashCode())
+                + "-" + Integer.toHexString(caller.hashCode()) + "\"";
+    }
+
+    /**
+     * @return records of the jobs the caller can read
+     */
+    private static List<PoolBuildRecord> readableRecords(List<PoolBuildRecord> records) {
+        Jenkins jenkins = Jenkins.getInstance();
+        Map<String, Boolean> readableJobs = new HashMap<String, Boolean>();
+        List<PoolBuildRecord> readableRecords = new ArrayList<PoolBuildRecord>();
+        for (PoolBuildRecord record : records) {
+            Boolean readable = readableJobs.get(record.getJobName());
+            if (readable == null) {
+                // jobs the caller can't read aren't found
+                readable = jenkins.getItemByFullName(record.getJobName(), Job.class) != null;
+                readableJobs.put(record.getJobName(), readable);
+            }
+            if (readable) {
+                readableRecords.add(record);
+            }
+        }
+        return readableRecords;
+    }
+
+    /**
+     * @return values of the global pool with the name, else the values when a value was last requested from the pool
+     */
+    private String findDefinition() {
+        GlobalPoolDefinition globalPool = ParameterPoolConfiguration.get().getPool(poolName);
+        if (globalPool != null) {
+            return globalPool.getValues();
+        }
+        PoolStatistics statistics = PoolLeaseRegistry.getInstance().findStatistics(poolName);
+        return statistics != null ? statistics.getDefinition() : null;
+    }
+
+    /**
+     * @return values still leased by builds that are no longer in the pool
+     */
+    private static List<String> drainingValues(PoolValueSet pool, Map<String, Integer> leaseCounts) {
+        List<String> drainingValues = new ArrayList<String>();
+        for (String value : leaseCounts.keySet()) {
+            if (!pool.contains(value)) {
+                drainingValues.add(value);
+            }
+        }
+        return drainingValues;
+    }
+
+    /**
+     * Values of builds the caller can't read are still counted through their leases.
+     */
+    private static List<String> freeValues(PoolValueSet pool, PoolSelectionTrace trace,
+                                           Map<String, Integer> leaseCounts) {
+        Set<String> runningValues = new HashSet<String>(trace.getValuesFromRunningBuilds());
+        Set<String> usedValues = new HashSet<String>(trace.getValuesFromFunctionalBuilds());
+        usedValues.addAll(trace.getValuesFromFailedBuilds());
+        usedValues.addAll(trace.getQuarantinedValues());
+        List<String> freeValues = new ArrayList<String>();
+        for (String value : pool) {
+            if (usedValues.contains(value)) {
+                continue;
+            }
+            Integer leaseCount = leaseCounts.get(value);
+            int holders = leaseCount != null ? leaseCount : 0;
+            if (holders == 0 && runningValues.contains(value)) {
+                // a running build's value that isn't leased, e.g. recorded before a restart
+                holders = 1;
+            }
+            if (holders < pool.getCapacity(value)) {
+                freeValues.add(value);
+            }
+        }
+        return freeValues;
+    }
+}
@@ -0,0 +1,321 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Job;
+import hudson.model.Result;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Selects a value from a pool based on the values used by recent builds and the values currently leased,
+ * and leases it to an owner while holding the pool's lock.
+ */
+public class PoolValueSelector {
+
+    /**
+     * Separates the values of a build that uses more than one value of a pool.
+     * Pool values can't contain it as it also separates values in the pool definition.
+     */
+    public static final String VALUE_SEPARATOR = ",";
+
+    private final String poolName;
+
+    private final PoolValueSet pool;
+
+    private final boolean preferError;
+
+    private final SelectionStrategy strategy;
+
+    private final PoolLeaseRegistry leaseRegistry;
+
+    private QuarantinePolicy quarantinePolicy = QuarantinePolicy.NEVER;
+
+    private String affinityKey;
+
+    private boolean recordExhaustion = true;
+
+    public PoolValueSelector(String poolName, PoolValueSet pool, boolean preferError) {
+        this(poolName, pool, preferError, new InPoolOrderStrategy());
+    }
+
+    public PoolValueSelector(String poolName, PoolValueSet pool, boolean preferError, SelectionStrategy strategy) {
+        this(poolName, pool, preferError, strategy, PoolLeaseRegistry.getInstance());
+    }
+
+    public PoolValueSelector(String poolName, PoolValueSet pool, boolean preferError,
+                             PoolLeaseRegistry leaseRegistry) {
+        this(poolName, pool, preferError, new InPoolOrderStrategy(), leaseRegistry);
+    }
+
+    public PoolValueSelector(String poolName, PoolValueSet pool, boolean preferError, SelectionStrategy strategy,
+                             PoolLeaseRegistry leaseRegistry) {
+        this.poolName = poolName;
+        this.pool = pool;
+        this.preferError = preferError;
+        this.strategy = strategy;
+        this.leaseRegistry = leaseRegistry;
+    }
+
+    /**
+     * Values that the policy quarantines are left out of selection.
+     */
+    public void setQuarantinePolicy(QuarantinePolicy quarantinePolicy) {
+        this.quarantinePolicy = quarantinePolicy;
+    }
+
+    /**
+     * Free values last leased with the affinity key are selected first, so that builds with the same key
+     * reuse a value that still holds their state.
+     * @param affinityKey key for the selection, null to select without affinity
+     */
+    public void setAffinityKey(String affinityKey) {
+        this.affinityKey = affinityKey;
+    }
+
+    /**
+     * @param recordExhaustion false if failing to select because every value is in use shouldn't be counted
+     *                         in the pool's statistics, e.g. when a queued build checks the pool again
+     */
+    public void setRecordExhaustion(boolean recordExhaustion) {
+        this.recordExhaustion = recordExhaustion;
+    }
+
+    /**
+     * @return records of the jobs' builds, most recently started first
+     */
+    public static Iterator<PoolBuildRecord> recordsFor(List<? extends Job<?, ?>> jobs) {
+        List<Iterator<PoolBuildRecord>> jobBuilds = new ArrayList<Iterator<PoolBuildRecord>>();
+        for (Job<?, ?> job : jobs) {
+            jobBuilds.add(PoolStateIndex.getInstance().getRecords(job).iterator());
+        }
+        return new MergingIterator<PoolBuildRecord>(jobBuilds, PoolBuildRecord.NEWEST_FIRST);
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    public PoolValueSet getPool() {
+        return pool;
+    }
+
+    /**
+     * @return empty trace for a selection from this pool
+     */
+    public PoolSelectionTrace newTrace() {
+        PoolSelectionTrace trace = new PoolSelectionTrace(poolName, pool.getDefinition());
+        trace.setAffinityKey(affinityKey);
+        return trace;
+    }
+
+    /**
+     * Selects a value and leases it to the owner.
+     * @param builds records of builds using the pool, most recently started first
+     * @param trace records the builds checked and the value selected
+     * @throws IllegalArgumentException if every value is in use
+     */
+    public String allocate(String owner, Iterator<PoolBuildRecord> builds, PoolSelectionTrace trace) {
+        return allocate(owner, builds, 1, trace).get(0);
+    }
+
+    /**
+     * Selects the count of values and leases all of them to the owner, or none of them if not enough are free.
+     * The build history is only checked once however many values are requested.
+     * @param builds records of builds using the pool, most recently started first
+     * @param trace records the builds checked and the values selected
+     * @throws IllegalArgumentException if fewer than the count of values are free
+     */
+    public List<String> allocate(final String owner, Iterator<PoolBuildRecord> builds, final int count,
+                                 final PoolSelectionTrace trace) {
+        if (count > pool.size()) {
+            throw new IllegalArgumentException("Cannot select " + count + " values from " + pool.size()
+                    + " values in pool " + pool.getDefinition());
+        }
+        long startTime = System.nanoTime();
+        final BuildPoolValues poolValues = collectPoolValues(owner, builds, trace);
+
+        PoolStatistics statistics = leaseRegistry.getStatistics(poolName);
+        statistics.recordDefinition(pool);
+        List<String> selectedValues;
+        try {
+            selectedValues = selectAndLease(owner, poolValues, count, trace, statistics);
+        } catch (IllegalArgumentException e) {
+            if (recordExhaustion) {
+                statistics.recordExhausted(pool.getTotalCapacity());
+            }
+            throw e;
+        }
+        statistics.recordSelection(System.nanoTime() - startTime, pool.getTotalCapacity());
+        return selectedValues;
+    }
+
+    private List<String> selectAndLease(final String owner, final BuildPoolValues poolValues, final int count,
+                                        final PoolSelectionTrace trace, final PoolStatistics statistics) {
+        return leaseRegistry.update(poolName, new PoolLeaseRegistry.LeaseUpdate<List<String>>() {
+            public List<String> apply(PoolLeases leases) {
+                for (String leasedValue : leases.getValuesLeasedByOthers(owner)) {
+                    poolValues.addLeases(leasedValue, leases.getLeaseCountOfOthers(leasedValue, owner));
+                }
+                for (String quarantinedValue : leases.getQuarantinedValues(quarantinePolicy)) {
+                    poolValues.quarantine(quarantinedValue);
+                }
+                if (affinityKey != null) {
+                    for (String affinityValue : leases.getValuesWithAffinity(affinityKey)) {
+                        poolValues.addAffinityValue(affinityValue);
+                    }
+                }
+                poolValues.recordValues(trace);
+
+                List<String> values = poolValues.selectValues(preferError, count, strategy,
+                        new SelectionContext(pool, leases));
+                if (values == null) {
+                    if (count == 1) {
+                        throw new IllegalArgumentException("No allowable value found! All of these values were taken: "
+                                + pool.getDefinition());
+                    }
+                    throw new IllegalArgumentException("Fewer than " + count + " values are free! "
+                            + "These values were taken: " + pool.getDefinition());
+                }
+                List<String> newlyLeasedValues = new ArrayList<String>();
+                for (String value : values) {
+                    boolean alreadyLeased = leases.getOwners(value).contains(owner);
+                    if (!leases.lease(value, owner, pool.getCapacity(value))) {
+                        releaseAll(leases, newlyLeasedValues, owner);
+                        throw new IllegalArgumentException("Value " + value + " is already leased by "
+                                + pool.getCapacity(value) + " builds");
+                    }
+                    if (!alreadyLeased) {
+                        newlyLeasedValues.add(value);
+                    }
+                }
+                trace.setSelectedValue(joinValues(values));
+                for (String value : values) {
+                    if (affinityKey != null) {
+                        statistics.recordAffinity(affinityKey.equals(leases.getAffinityKey(value)));
+                    }
+                    leases.setAffinityKey(value, affinityKey);
+                }
+                return values;
+            }
+        });
+    }
+
+    /**
+     * Describes which values are in use without selecting or leasing a value.
+     * @param builds records of builds using the pool, most recently started first
+     * @return trace with the values from running, functional and failed builds, values leased count as running
+     */
+    public PoolSelectionTrace describe(Iterator<PoolBuildRecord> builds) {
+        PoolSelectionTrace trace = newTrace();
+        final BuildPoolValues poolValues = collectPoolValues(null, builds, trace);
+        leaseRegistry.update(poolName, new PoolLeaseRegistry.LeaseUpdate<Void>() {
+            public Void apply(PoolLeases leases) {
+                for (String leasedValue : leases.getLeasedValues()) {
+                    poolValues.addLeases(leasedValue, leases.getLeaseCount(leasedValue));
+                }
+                for (String quarantinedValue : leases.getQuarantinedValues(quarantinePolicy)) {
+                    poolValues.quarantine(quarantinedValue);
+                }
+                return null;
+            }
+        });
+        poolValues.recordValues(trace);
+        return trace;
+    }
+
+    /**
+     * Moves the leases on values from the owner they were reserved for to a new owner.
+     * None of the leases are moved if any of the values has since been leased up to its capacity by others.
+     * @return false if any of the values has since been leased up to its capacity by others
+     */
+    public boolean claim(final List<String> values, final String reservedOwner, final String owner) {
+        return leaseRegistry.update(poolName, new PoolLeaseRegistry.LeaseUpdate<Boolean>() {
+            public Boolean apply(PoolLeases leases) {
+                for (String value : values) {
+                    List<String> otherOwners = leases.getOwners(value);
+                    otherOwners.remove(reservedOwner);
+                    otherOwners.remove(owner);
+                    if (otherOwners.size() >= pool.getCapacity(value)) {
+                        return false;
+                    }
+                }
+                List<String> claimedValues = new ArrayList<String>();
+                List<String> reservedValues = new ArrayList<String>();
+                for (String value : values) {
+                    boolean alreadyLeased = leases.getOwners(value).contains(owner);
+                    if (leases.release(value, reservedOwner)) {
+                        reservedValues.add(value);
+                    }
+                    if (!leases.lease(value, owner, pool.getCapacity(value))) {
+                        // puts the leases back as they were before the claim
+                        releaseAll(leases, claimedValues, owner);
+                        for (String reservedValue : reservedValues) {
+                            leases.lease(reservedValue, reservedOwner, pool.getCapacity(reservedValue));
+                        }
+                        return false;
+                    }
+                    if (!alreadyLeased) {
+                        claimedValues.add(value);
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    private static void releaseAll(PoolLeases leases, List<String> values, String owner) {
+        for (String value : values) {
+            leases.release(value, owner);
+        }
+    }
+
+    /**
+     * @return values joined into the form stored for a build that uses more than one value of a pool
+     */
+    public static String joinValues(List<String> values) {
+        return StringUtils.join(values, VALUE_SEPARATOR);
+    }
+
+    /**
+     * @return values of a build, split from the form stored by {@link #joinValues(List)}
+     */
+    public static String[] splitValues(String joinedValues) {
+        return StringUtils.split(joinedValues, VALUE_SEPARATOR);
+    }
+
+    /**
+     * @param currentBuildId lease owner for the selection, builds it is scoped to are skipped, null to check every build
+     */
+    BuildPoolValues collectPoolValues(String currentBuildId, Iterator<PoolBuildRecord> builds,
+                                      PoolSelectionTrace trace) {
+        BuildPoolValues poolValues = new BuildPoolValues(pool);
+        int completedBuildsChecked = 0;
+        while (builds.hasNext()) {
+            PoolBuildRecord build = builds.next();
+            if (currentBuildId != null && PoolLeases.isOwnedBy(currentBuildId, build.getId())) {
+                continue;
+            }
+
+            // there could be running builds further before completed builds
+            if (completedBuildsChecked >= PoolStateIndex.COMPLETED_BUILDS_KEPT) {
+                break;
+            }
+            if (!build.isBuilding()) {
+                completedBuildsChecked ++;
+            }
+
+            String poolValue = build.getValue(poolName);
+            Result result = build.getResultFor(poolName);
+            trace.addCheckedBuild(build.getId(), poolValue, result.toString());
+            if (poolValue != null) {
+                for (String value : splitValues(poolValue)) {
+                    // values of parallel blocks are released separately while the build is still running
+                    poolValues.addPoolValue(build.getResultFor(poolName, value), value);
+                }
+            }
+        }
+        return poolValues;
+    }
+}
@@ -0,0 +1,635 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Ordered, immutable set of pool values compiled from single values and patterns of numeric ranges.
+ * Range values are generated on demand rather than stored, so memory use is constant per range.
+ * Single values are looked up by hash and only range segments are matched against a value, so
+ * {@link #contains(Object)} doesn't depend on the number of single values or the size of the ranges.
+ *
+ * Each value generated by a segment has an ordinal, its position when all segments are concatenated.
+ * A value repeated by a later segment keeps the ordinal of its first occurrence and is skipped when iterating.
+ * Values matched by an exclusion, e.g. !vm3, keep their ordinal but are never part of the set.
+ *
+ * Each value has a capacity, the number of builds that can use it at once, which is 1 unless its segment
+ * was defined with a higher capacity, e.g. bighost[1..3]x4.
+ */
+public class PoolValueSet extends AbstractSet<String> {
+
+    private final List<Segment> segments;
+
+    private final List<Segment> exclusions;
+
+    private final int[] segmentOffsets;
+
+    /**
+     * Ordinal of the first occurrence of each single value.
+     */
+    private final Map<String, Integer> singleValueOrdinals = new HashMap<String, Integer>();
+
+    /**
+     * Indexes of the segments that are ranges, in order.
+     */
+    private final int[] rangeSegmentIndexes;
+
+    /**
+     * Ordinals of the first occurrence of each excluded value.
+     */
+    private final BitSet excludedOrdinals = new BitSet();
+
+    private final int ordinalCount;
+
+    private final boolean mayContainDuplicates;
+
+    private final boolean hasCapacity;
+
+    private int size = -1;
+
+    PoolValueSet(List<Segment> segments) {
+        this(segments, Collections.<Segment>emptyList());
+    }
+
+    PoolValueSet(List<Segment> segments, List<Segment> exclusions) {
+        this.segments = Collections.unmodifiableList(new ArrayList<Segment>(segments));
+        this.exclusions = Collections.unmodifiableList(new ArrayList<Segment>(exclusions));
+        this.segmentOffsets = new int[segments.size()];
+        List<Integer> rangeIndexes = new ArrayList<Integer>();
+        int offset = 0;
+        for (int i = 0; i < segments.size(); i ++) {
+            segmentOffsets[i] = offset;
+            Segment segment = segments.get(i);
+            if (segment instanceof SingleValue) {
+                String value = segment.get(0);
+                if (!singleValueOrdinals.containsKey(value)) {
+                    singleValueOrdinals.put(value, offset);
+                }
+            } else {
+                rangeIndexes.add(i);
+            }
+            offset += segment.size();
+        }
+        this.rangeSegmentIndexes = new int[rangeIndexes.size()];
+        for (int i = 0; i < rangeSegmentIndexes.length; i ++) {
+            rangeSegmentIndexes[i] = rangeIndexes.get(i);
+        }
+        this.ordinalCount = offset;
+        this.mayContainDuplicates = checkForPossibleDuplicates();
+        boolean anySegmentHasCapacity = false;
+        for (Segment segment : segments) {
+            anySegmentHasCapacity |= segment.capacity > 1;
+        }
+        this.hasCapacity = anySegmentHasCapacity;
+        for (Segment exclusion : exclusions) {
+            excludeValuesOf(exclusion);
+        }
+    }
+
+    /**
+     * Checks whichever is smaller, the values of the exclusion or the values of the pool.
+     */
+    private void excludeValuesOf(Segment exclusion) {
+        if (exclusion.size() <= ordinalCount) {
+            for (int i = 0; i < exclusion.size(); i ++) {
+                int ordinal = firstOrdinalOf(exclusion.get(i));
+                if (ordinal >= 0) {
+                    excludedOrdinals.set(ordinal);
+                }
+            }
+            return;
+        }
+        for (int ordinal = 0; ordinal < ordinalCount; ordinal ++) {
+            String value = get(ordinal);
+            if (exclusion.indexOf(value) >= 0 && firstOrdinalOf(value) == ordinal) {
+                excludedOrdinals.set(ordinal);
+            }
+        }
+    }
+
+    /**
+     * @return number of ordinals, including any duplicated values
+     */
+    public int getOrdinalCount() {
+        return ordinalCount;
+    }
+
+    /**
+     * @return the value for the ordinal
+     */
+    public String get(int ordinal) {
+        if (ordinal < 0 || ordinal >= ordinalCount) {
+            throw new IndexOutOfBoundsException("Ordinal " + ordinal + " is outside pool of size " + ordinalCount);
+        }
+        int segmentIndex = segmentIndexFor(ordinal);
+        return segments.get(segmentIndex).get(ordinal - segmentOffsets[segmentIndex]);
+    }
+
+    /**
+     * @return number of builds that can use the value of the ordinal at once
+     */
+    public int getCapacity(int ordinal) {
+        return hasCapacity ? segments.get(segmentIndexFor(ordinal)).capacity : 1;
+    }
+
+    /**
+     * @return number of builds that can use the value at once, the capacity of its first occurrence
+     */
+    public int getCapacity(String value) {
+        if (!hasCapacity) {
+            return 1;
+        }
+        int ordinal = indexOf(value);
+        return ordinal == -1 ? 1 : getCapacity(ordinal);
+    }
+
+    /**
+     * @return true if any value can be used by more than one build at once
+     */
+    public boolean hasCapacity() {
+        return hasCapacity;
+    }
+
+    /**
+     * @return number of builds that can use the pool at once
+     */
+    public int getTotalCapacity() {
+        if (!hasCapacity) {
+            return size();
+        }
+        int totalCapacity = 0;
+        for (int ordinal = 0; ordinal < ordinalCount; ordinal ++) {
+            if (isFirstOccurrence(ordinal)) {
+                totalCapacity += getCapacity(ordinal);
+            }
+        }
+        return totalCapacity;
+    }
+
+    /**
+     * @return ordinal of the first occurrence of the value, -1 if the value is not in the pool
+     */
+    public int indexOf(String value) {
+        int ordinal = firstOrdinalOf(value);
+        return ordinal >= 0 && excludedOrdinals.get(ordinal) ? -1 : ordinal;
+    }
+
+    /**
+     * Only ranges before the first occurrence as a single value need to be matched against the value.
+     */
+    private int firstOrdinalOf(String value) {
+        Integer singleValueOrdinal = singleValueOrdinals.get(value);
+        int ordinal = singleValueOrdinal != null ? singleValueOrdinal : -1;
+        for (int segmentIndex : rangeSegmentIndexes) {
+            if (ordinal != -1 && segmentOffsets[segmentIndex] > ordinal) {
+                break;
+            }
+            int index = segments.get(segmentIndex).indexOf(value);
+            if (index >= 0) {
+                return segmentOffsets[segmentIndex] + index;
+            }
+        }
+        return ordinal;
+    }
+
+    /**
+     * @return true if the ordinal is the first occurrence of its value and the value isn't excluded
+     */
+    public boolean isFirstOccurrence(int ordinal) {
+        return !excludedOrdinals.get(ordinal) && (!mayContainDuplicates || indexOf(get(ordinal)) == ordinal);
+    }
+
+    /**
+     * Clears the ordinals of excluded values from the set of ordinals.
+     */
+    void removeExcluded(BitSet ordinals) {
+        ordinals.andNot(excludedOrdinals);
+    }
+
+    /**
+     * @return false if every ordinal is known to be the first occurrence of its value
+     */
+    boolean mayContainDuplicates() {
+        return mayContainDuplicates;
+    }
+
+    @Override
+    public boolean contains(Object value) {
+        return value instanceof String && indexOf((String) value) >= 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int nextOrdinal = findFirstOccurrence(0);
+
+            public boolean hasNext() {
+                return nextOrdinal < ordinalCount;
+            }
+
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String value = get(nextOrdinal);
+                nextOrdinal = findFirstOccurrence(nextOrdinal + 1);
+                return value;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("Pool values are immutable");
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        if (!mayContainDuplicates) {
+            return ordinalCount - excludedOrdinals.cardinality();
+        }
+        if (size == -1) {
+            int count = 0;
+            for (int ordinal = 0; ordinal < ordinalCount; ordinal ++) {
+                if (isFirstOccurrence(ordinal)) {
+                    count ++;
+                }
+            }
+            size = count;
+        }
+        return size;
+    }
+
+    /**
+     * @return compact text for the pool, ranges are not expanded
+     */
+    public String getDefinition() {
+        StringBuilder definition = new StringBuilder();
+        for (Segment segment : segments) {
+            if (definition.length() > 0) {
+                definition.append(", ");
+            }
+            definition.append(segment.toString());
+        }
+        for (Segment exclusion : exclusions) {
+            definition.append(", !").append(exclusion.toString());
+        }
+        return definition.toString();
+    }
+
+    private int findFirstOccurrence(int ordinal) {
+        while (ordinal < ordinalCount && !isFirstOccurrence(ordinal)) {
+            ordinal ++;
+        }
+        return ordinal;
+    }
+
+    private int segmentIndexFor(int ordinal) {
+        int low = 0;
+        int high = segmentOffsets.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segmentOffsets[middle] <= ordinal) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private boolean checkForPossibleDuplicates() {
+        for (int i = 0; i < segments.size(); i ++) {
+            for (int j = i + 1; j < segments.size(); j ++) {
+                if (segments.get(i).mayOverlap(segments.get(j))) {
+                    return true;
+                }
+            }
+            if (segments.get(i).mayRepeatValues()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A run of values in the pool definition.
+     */
+    abstract static class Segment {
+
+        /**
+         * Number of builds that can use each value of the segment at once.
+         */
+        final int capacity;
+
+        Segment(int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("Capacity " + capacity + " must be at least 1");
+            }
+            this.capacity = capacity;
+        }
+
+        abstract int size();
+
+        abstract String get(int index);
+
+        /**
+         * @return index of the value in this segment, -1 if not present
+         */
+        abstract int indexOf(String value);
+
+        /**
+         * Conservative check, may return true for segments that turn out not to share any values.
+         */
+        abstract boolean mayOverlap(Segment other);
+
+        boolean mayRepeatValues() {
+            return false;
+        }
+
+        /**
+         * @return suffix appended to the segment's definition for its capacity
+         */
+        String capacitySuffix() {
+            return capacity > 1 ? "x" + capacity : "";
+        }
+    }
+
+    static class SingleValue extends Segment {
+
+        private final String value;
+
+        SingleValue(String value) {
+            this(value, 1);
+        }
+
+        SingleValue(String value, int capacity) {
+            super(capacity);
+            this.value = value;
+        }
+
+        @Override
+        int size() {
+            return 1;
+        }
+
+        @Override
+        String get(int index) {
+            return value;
+        }
+
+        @Override
+        int indexOf(String value) {
+            return this.value.equals(value) ? 0 : -1;
+        }
+
+        @Override
+        boolean mayOverlap(Segment other) {
+            return other.indexOf(value) >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return capacity > 1 ? "[" + value + "]" + capacitySuffix() : value;
+        }
+    }
+
+    /**
+     * Pattern of text and numeric ranges, e.g. vm[1..4] or rack[1..4]-vm[01..16].
+     * The values are every combination of the numbers of its ranges, the last range changing fastest.
+     */
+    static class Range extends Segment {
+
+        /**
+         * Text before each range and after the last range.
+         */
+        private final String[] literals;
+
+        private final NumberRange[] ranges;
+
+        private final int size;
+
+        Range(String prefix, int start, int end, String suffix) {
+            this(prefix, start, end, suffix, 1);
+        }
+
+        Range(String prefix, int start, int end, String suffix, int capacity) {
+            this(Arrays.asList(prefix, suffix), Collections.singletonList(new NumberRange(start, end, 1, 0)), capacity);
+        }
+
+        Range(List<String> literals, List<NumberRange> ranges, int capacity) {
+            super(capacity);
+            this.literals = literals.toArray(new String[literals.size()]);
+            this.ranges = ranges.toArray(new NumberRange[ranges.size()]);
+            long combinations = 1;
+            for (NumberRange range : ranges) {
+                combinations *= range.size();
+                if (combinations > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Too many values in " + this);
+                }
+            }
+            this.size = (int) combinations;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        String get(int index) {
+            int[] numbers = new int[ranges.length];
+            for (int i = ranges.length - 1; i >= 0; i --) {
+                numbers[i] = ranges[i].get(index % ranges[i].size());
+                index /= ranges[i].size();
+            }
+            StringBuilder value = new StringBuilder(literals[0]);
+            for (int i = 0; i < ranges.length; i ++) {
+                value.append(ranges[i].format(numbers[i])).append(literals[i + 1]);
+            }
+            return value.toString();
+        }
+
+        @Override
+        int indexOf(String value) {
+            if (!value.startsWith(literals[0]) || !value.endsWith(literals[ranges.length])) {
+                return -1;
+            }
+            return indexOf(value, literals[0].length(), 0, 0);
+        }
+
+        /**
+         * Matches the number of the range at the position and the rest of the pattern after it.
+         * Only numbers of a length the range can print are tried, so without ambiguous text between ranges
+         * a single length matches.
+         * @param index index of the combination of the numbers matched by earlier ranges
+         * @return lowest index the value matches, -1 if it doesn't match
+         */
+        private int indexOf(String value, int position, int rangeIndex, int index) {
+            if (rangeIndex == ranges.length) {
+                return position == value.length() ? index : -1;
+            }
+            NumberRange range = ranges[rangeIndex];
+            int lowestIndex = -1;
+            int maxLength = Math.min(range.getMaxLength(), value.length() - position);
+            for (int length = range.getMinLength(); length <= maxLength; length ++) {
+                int numberEnd = position + length;
+                int numberIndex = range.indexOf(value, position, numberEnd);
+                String literal = literals[rangeIndex + 1];
+                if (numberIndex == -1 || !value.startsWith(literal, numberEnd)) {
+                    continue;
+                }
+                int valueIndex = indexOf(value, numberEnd + literal.length(), rangeIndex + 1,
+                        index * range.size() + numberIndex);
+                if (valueIndex != -1 && (lowestIndex == -1 || valueIndex < lowestIndex)) {
+                    lowestIndex = valueIndex;
+                }
+            }
+            return lowestIndex;
+        }
+
+        @Override
+        boolean mayOverlap(Segment other) {
+            if (!(other instanceof Range)) {
+                return other.mayOverlap(this);
+            }
+            Range otherRange = (Range) other;
+            String prefix = literals[0];
+            String suffix = literals[ranges.length];
+            String otherPrefix = otherRange.literals[0];
+            String otherSuffix = otherRange.literals[otherRange.ranges.length];
+            return (prefix.startsWith(otherPrefix) || otherPrefix.startsWith(prefix))
+                    && (suffix.endsWith(otherSuffix) || otherSuffix.endsWith(suffix));
+        }
+
+        /**
+         * Numbers of two ranges can only run together if nothing but digits separates them, e.g. [1..2][1..11].
+         */
+        @Override
+        boolean mayRepeatValues() {
+            for (int i = 0; i < ranges.length - 1; i ++) {
+                String separator = literals[i + 1];
+                if (!ranges[i].isFixedLength()
+                        && (separator.length() == 0 || Character.isDigit(separator.charAt(0)))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder definition = new StringBuilder(literals[0]);
+            for (int i = 0; i < ranges.length; i ++) {
+                definition.append('[').append(ranges[i]).append(']').append(literals[i + 1]);
+            }
+            return definition.append(capacitySuffix()).toString();
+        }
+    }
+
+    /**
+     * Numbers from start towards end in steps, e.g. 1..9:2 for 1, 3, 5, 7, 9. Descending ranges are supported.
+     * Numbers are zero padded to the width if one is set, e.g. 01..16 for 01, 02 up to 16.
+     */
+    static class NumberRange {
+
+        private final int start;
+
+        private final int end;
+
+        private final int step;
+
+        /**
+         * Number of digits numbers are padded to, 0 if they are not padded.
+         */
+        private final int width;
+
+        private final int size;
+
+        NumberRange(int start, int end, int step, int width) {
+            if (start < 0 || end < 0) {
+                throw new IllegalArgumentException("Range " + start + ".." + end + " can't have negative numbers");
+            }
+            if (step < 1) {
+                throw new IllegalArgumentException("Step " + step + " must be at least 1");
+            }
+            this.start = start;
+            this.end = end;
+            this.step = step;
+            this.width = width;
+            long numbers = Math.abs((long) end - start) / step + 1;
+            if (numbers > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many values in range " + this);
+            }
+            this.size = (int) numbers;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int index) {
+            return start <= end ? start + index * step : start - index * step;
+        }
+
+        String format(int number) {
+            String digits = String.valueOf(number);
+            if (digits.length() >= width) {
+                return digits;
+            }
+            StringBuilder padded = new StringBuilder(width);
+            for (int i = digits.length(); i < width; i ++) {
+                padded.append('0');
+            }
+            return padded.append(digits).toString();
+        }
+
+        /**
+         * @return index of the number printed between the positions of the text, -1 if it isn't a number of the range
+         */
+        int indexOf(String text, int numberStart, int numberEnd) {
+            int length = numberEnd - numberStart;
+            if (length == 0 || length > 10 || (width > 0 ? length != width
+                    : length > 1 && text.charAt(numberStart) == '0')) {
+                return -1;
+            }
+            long number = 0;
+            for (int i = numberStart; i < numberEnd; i ++) {
+                char character = text.charAt(i);
+                if (character < '0' || character > '9') {
+                    return -1;
+                }
+                number = number * 10 + (character - '0');
+            }
+            long offset = start <= end ? number - start : start - number;
+            if (offset < 0 || offset % step != 0 || offset / step >= size) {
+                return -1;
+            }
+            return (int) (offset / step);
+        }
+
+        int getMinLength() {
+            return width > 0 ? width : String.valueOf(Math.min(start, end)).length();
+        }
+
+        int getMaxLength() {
+            return width > 0 ? width : String.valueOf(Math.max(start, end)).length();
+        }
+
+        boolean isFixedLength() {
+            return getMinLength() == getMaxLength();
+        }
+
+        @Override
+        public String toString() {
+            return format(start) + ".." + format(end) + (step > 1 ? ":" + step : "");
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Project;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import hudson.tasks.Builder;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves the comma separated project names of a pool to jobs.
+ * Names are only resolved the first time they are used from a folder, as falling back to
+ * {@link AbstractProject#findNearest(String)} checks every item in Jenkins.
+ * Jobs using a global pool are found the same way, checking every job only the first time.
+ * The cache is cleared whenever a job is created, configured, renamed, moved or deleted.
+ */
+public class ProjectResolver {
+
+    private static final JenkinsScoped<ProjectResolver> INSTANCE = new JenkinsScoped<ProjectResolver>() {
+        @Override
+        protected ProjectResolver create(Jenkins jenkins) {
+            return new ProjectResolver();
+        }
+    };
+
+    private final ConcurrentMap<String, List<Job<?, ?>>> resolvedProjects =
+            new ConcurrentHashMap<String, List<Job<?, ?>>>();
+
+    private final ConcurrentMap<String, List<Job<?, ?>>> globalPoolUsers =
+            new ConcurrentHashMap<String, List<Job<?, ?>>>();
+
+    public static ProjectResolver getInstance() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * @param projects comma separated project names, blank to use the current project
+     * @return projects that use the pool
+     * @throws IllegalArgumentException if a project name can't be found
+     */
+    public List<Job<?, ?>> resolve(String projects, Job<?, ?> currentProject) {
+        if (StringUtils.isBlank(projects)) {
+            return Collections.<Job<?, ?>>singletonList(currentProject);
+        }
+        String key = currentProject.getParent().getFullName() + "|" + projects;
+        List<Job<?, ?>> projectsToUse = resolvedProjects.get(key);
+        if (projectsToUse == null) {
+            projectsToUse = Collections.unmodifiableList(lookup(projects, currentProject));
+            resolvedProjects.put(key, projectsToUse);
+        }
+        return projectsToUse;
+    }
+
+    /**
+     * @return jobs with a build step using the global pool, always including the current project
+     */
+    public List<Job<?, ?>> resolveUsersOf(String globalPoolName, Job<?, ?> currentProject) {
+        List<Job<?, ?>> users = getUsersOf(globalPoolName);
+        if (users.contains(currentProject)) {
+            return users;
+        }
+        List<Job<?, ?>> projectsToUse = new ArrayList<Job<?, ?>>(users);
+        projectsToUse.add(currentProject);
+        return projectsToUse;
+    }
+
+    /**
+     * @return jobs with a build step using the global pool
+     */
+    public List<Job<?, ?>> getUsersOf(String globalPoolName) {
+        List<Job<?, ?>> users = globalPoolUsers.get(globalPoolName);
+        if (users == null) {
+            users = Collections.unmodifiableList(lookupUsersOf(globalPoolName));
+            globalPoolUsers.put(globalPoolName, users);
+        }
+        return users;
+    }
+
+    public void clear() {
+        resolvedProjects.clear();
+        globalPoolUsers.clear();
+    }
+
+    int size() {
+        return resolvedProjects.size();
+    }
+
+    private List<Job<?, ?>> lookup(String projects, Job<?, ?> currentProject) {
+        List<Job<?, ?>> projectsToUse = new ArrayList<Job<?, ?>>();
+        for (String potentialName : projects.split(",")) {
+            Job<?, ?> matchingProject = Jenkins.getInstance().getItem(potentialName.trim(),
+                    currentProject.getParent(), Job.class);
+            if (matchingProject == null) {
+                matchingProject = AbstractProject.findNearest(potentialName);
+            }
+            if (matchingProject == null) {
+                throw new IllegalArgumentException("Project name " + potentialName + " was not found!");
+            }
+            projectsToUse.add(matchingProject);
+        }
+        return projectsToUse;
+    }
+
+    private List<Job<?, ?>> lookupUsersOf(String globalPoolName) {
+        List<Job<?, ?>> users = new ArrayList<Job<?, ?>>();
+        // the users are cached for every caller, so they mustn't be limited to the jobs this caller can see
+        SecurityContext previousContext = ACL.impersonate(ACL.SYSTEM);
+        try {
+            for (Project<?, ?> project : Jenkins.getInstance().getAllItems(Project.class)) {
+                for (Builder builder : project.getBuilders()) {
+                    if (builder instanceof ParameterPoolBuilder
+                            && globalPoolName.equals(((ParameterPoolBuilder) builder).getGlobalPool())) {
+                        users.add(project);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            SecurityContextHolder.setContext(previousContext);
+        }
+        return users;
+    }
+
+    /**
+     * Clears resolved projects when jobs change, a new job could also be a closer match for a name.
+     */
+    @Extension
+    public static class Invalidator extends ItemListener {
+
+        @Override
+        public void onCreated(Item item) {
+            getInstance().clear();
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            getInstance().clear();
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            getInstance().clear();
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            getInstance().clear();
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            getInstance().clear();
+        }
+    }
+}
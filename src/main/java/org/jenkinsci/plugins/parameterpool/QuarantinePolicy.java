@@ -0,0 +1,43 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a pool value that keeps failing builds is left out of selection.
+ * A value is quarantined once it has failed the threshold of builds in a row, until the probe interval has passed
+ * since its last failure. The next build to select it then probes it, another failure quarantines it again
+ * and a success clears its failures.
+ */
+public class QuarantinePolicy {
+
+    public static final QuarantinePolicy NEVER = new QuarantinePolicy(0, 0);
+
+    private final int failureThreshold;
+
+    private final long probeIntervalMillis;
+
+    /**
+     * @param failureThreshold failures in a row that quarantine a value, 0 to never quarantine values
+     */
+    public QuarantinePolicy(int failureThreshold, long probeIntervalMillis) {
+        this.failureThreshold = failureThreshold;
+        this.probeIntervalMillis = probeIntervalMillis;
+    }
+
+    public static QuarantinePolicy ofMinutes(int failureThreshold, int probeIntervalMinutes) {
+        return new QuarantinePolicy(failureThreshold, TimeUnit.MINUTES.toMillis(probeIntervalMinutes));
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getProbeIntervalMillis() {
+        return probeIntervalMillis;
+    }
+
+    public boolean isQuarantined(int consecutiveFailures, long lastFailureTime, long now) {
+        return failureThreshold > 0 && consecutiveFailures >= failureThreshold
+                && now - lastFailureTime < probeIntervalMillis;
+    }
+}
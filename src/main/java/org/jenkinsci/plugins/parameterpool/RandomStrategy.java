@@ -0,0 +1,39 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Selects any of the free values with equal probability.
+ */
+public class RandomStrategy extends SelectionStrategy {
+
+    private static final Random RANDOM = new Random();
+
+    @DataBoundConstructor
+    public RandomStrategy() {
+    }
+
+    @Override
+    public int select(BitSet candidates, SelectionContext context) {
+        int remaining = RANDOM.nextInt(candidates.cardinality());
+        int ordinal = candidates.nextSetBit(0);
+        while (remaining > 0) {
+            ordinal = candidates.nextSetBit(ordinal + 1);
+            remaining --;
+        }
+        return ordinal;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<SelectionStrategy> {
+        @Override
+        public String getDisplayName() {
+            return "Random value";
+        }
+    }
+}
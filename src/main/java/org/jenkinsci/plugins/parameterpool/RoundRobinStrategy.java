@@ -0,0 +1,33 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.BitSet;
+
+/**
+ * Selects the next free value in pool order after the value last leased from the pool, wrapping around at the end.
+ */
+public class RoundRobinStrategy extends SelectionStrategy {
+
+    @DataBoundConstructor
+    public RoundRobinStrategy() {
+    }
+
+    @Override
+    public int select(BitSet candidates, SelectionContext context) {
+        String lastLeasedValue = context.getLastLeasedValue();
+        int lastOrdinal = lastLeasedValue != null ? context.getPool().indexOf(lastLeasedValue) : -1;
+        int ordinal = candidates.nextSetBit(lastOrdinal + 1);
+        return ordinal >= 0 ? ordinal : candidates.nextSetBit(0);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<SelectionStrategy> {
+        @Override
+        public String getDisplayName() {
+            return "Round robin";
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import java.util.Collection;
+
+/**
+ * State of a pool that a {@link SelectionStrategy} can use to choose a value.
+ * Only valid while the pool's lock is held.
+ */
+public class SelectionContext {
+
+    private final PoolValueSet pool;
+
+    private final PoolLeases leases;
+
+    public SelectionContext(PoolValueSet pool, PoolLeases leases) {
+        this.pool = pool;
+        this.leases = leases;
+    }
+
+    public String getPoolName() {
+        return leases.getPoolName();
+    }
+
+    public PoolValueSet getPool() {
+        return pool;
+    }
+
+    /**
+     * @return the value most recently leased from the pool, null if none has been leased since Jenkins started
+     */
+    public String getLastLeasedValue() {
+        return leases.getLastLeasedValue();
+    }
+
+    public boolean hasBeenReleased(String value) {
+        return leases.getReleaseTime(value) != 0;
+    }
+
+    /**
+     * @return values released since Jenkins started, least recently released first
+     */
+    public Collection<String> getValuesInReleaseOrder() {
+        return leases.getValuesInReleaseOrder();
+    }
+}
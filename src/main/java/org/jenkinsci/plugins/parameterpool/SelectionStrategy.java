@@ -0,0 +1,28 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.DescriptorExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import jenkins.model.Jenkins;
+
+import java.util.BitSet;
+
+/**
+ * Chooses which of the free values of a pool is selected.
+ * Free values are still grouped by preference, unused values before values from functional builds before values
+ * from failed builds, or failed values first if errors are preferred. The strategy chooses a value within a group.
+ */
+public abstract class SelectionStrategy extends AbstractDescribableImpl<SelectionStrategy> implements ExtensionPoint {
+
+    /**
+     * Called while the pool's lock is held.
+     * @param candidates ordinals of the values that can be selected, never empty
+     * @return ordinal of the selected value, one of the candidates
+     */
+    public abstract int select(BitSet candidates, SelectionContext context);
+
+    public static DescriptorExtensionList<SelectionStrategy, Descriptor<SelectionStrategy>> all() {
+        return Jenkins.getInstance().getDescriptorList(SelectionStrategy.class);
+    }
+}
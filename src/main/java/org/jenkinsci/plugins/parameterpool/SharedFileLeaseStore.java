@@ -0,0 +1,208 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.util.AtomicFileWriter;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps leases in a directory shared by several controllers, so that controllers using the same pools
+ * never lease the same value.
+ *
+ * Each pool has a record file that is read and, if the update changed any leases, atomically replaced while
+ * holding an exclusive {@link FileLock} on the pool's lock file. Leases held by other controllers are seen by
+ * updates as leased by an owner prefixed with the controller id, so they never match an owner on this controller.
+ */
+public class SharedFileLeaseStore extends LeaseStore {
+
+    private static final Logger LOGGER = Logger.getLogger(SharedFileLeaseStore.class.getName());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String RECORD_SUFFIX = ".leases";
+    private static final String LOCK_SUFFIX = ".lock";
+
+    private static final String LEASE = "L";
+    private static final String RELEASE_TIME = "R";
+    private static final String LAST_LEASED = "N";
+    private static final String FAILURES = "F";
+    private static final String AFFINITY = "A";
+
+    /**
+     * Separates the controller id from the owner for leases held by other controllers.
+     * Never part of a local owner as job names can't contain it.
+     */
+    static final char CONTROLLER_SEPARATOR = '@';
+
+    private final File directory;
+
+    private final String controllerId;
+
+    /**
+     * @param controllerId id of this controller, unique among the controllers sharing the directory
+     */
+    public SharedFileLeaseStore(File directory, String controllerId) {
+        if (controllerId.indexOf(CONTROLLER_SEPARATOR) >= 0) {
+            throw new IllegalArgumentException("Controller id " + controllerId + " can't contain "
+                    + CONTROLLER_SEPARATOR);
+        }
+        this.directory = directory;
+        this.controllerId = controllerId;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public String getControllerId() {
+        return controllerId;
+    }
+
+    @Override
+    public <T> T update(String poolName, PoolStatistics statistics, PoolLeaseRegistry.LeaseUpdate<T> update) {
+        // file locks are held by the process, so threads of this controller are excluded separately
+        Lock lock = lockFor(poolName);
+        lock.lock();
+        try {
+            return updateWithFileLock(poolName, statistics, update);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to update leases for pool " + poolName + " in " + directory, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Set<String> getPoolNames() {
+        Set<String> poolNames = new HashSet<String>();
+        String[] fileNames = directory.list();
+        if (fileNames == null) {
+            return poolNames;
+        }
+        for (String fileName : fileNames) {
+            if (fileName.endsWith(RECORD_SUFFIX)) {
+                poolNames.add(decode(fileName.substring(0, fileName.length() - RECORD_SUFFIX.length())));
+            }
+        }
+        return poolNames;
+    }
+
+    private <T> T updateWithFileLock(String poolName, PoolStatistics statistics,
+                                     PoolLeaseRegistry.LeaseUpdate<T> update) throws IOException {
+        directory.mkdirs();
+        File recordFile = new File(directory, encode(poolName) + RECORD_SUFFIX);
+        RandomAccessFile lockFile = new RandomAccessFile(new File(directory, encode(poolName) + LOCK_SUFFIX), "rw");
+        try {
+            FileChannel lockChannel = lockFile.getChannel();
+            FileLock fileLock = lockChannel.lock();
+            try {
+                PoolLeases leases = new PoolLeases(poolName, statistics);
+                if (recordFile.exists()) {
+                    read(recordFile, leases);
+                }
+                int modifications = leases.getModifications();
+                T result = update.apply(leases);
+                if (leases.getModifications() != modifications) {
+                    write(recordFile, leases);
+                }
+                return result;
+            } finally {
+                fileLock.release();
+            }
+        } finally {
+            lockFile.close();
+        }
+    }
+
+    private void read(File recordFile, PoolLeases leases) throws IOException {
+        for (String line : FileUtils.readLines(recordFile, UTF_8.name())) {
+            String[] fields = line.split(" ");
+            try {
+                if (fields[0].equals(LEASE)) {
+                    String controller = decode(fields[2]);
+                    String owner = decode(fields[3]);
+                    if (!controller.equals(controllerId)) {
+                        owner = controller + CONTROLLER_SEPARATOR + owner;
+                    }
+                    long leasedAt = Long.parseLong(fields[4]);
+                    // leases written before renewals were recorded count as renewed when taken
+                    long renewedAt = fields.length > 5 ? Long.parseLong(fields[5]) : leasedAt;
+                    leases.restoreLease(decode(fields[1]), owner, leasedAt, renewedAt);
+                } else if (fields[0].equals(RELEASE_TIME)) {
+                    leases.restoreReleaseTime(decode(fields[1]), Long.parseLong(fields[2]));
+                } else if (fields[0].equals(FAILURES)) {
+                    leases.restoreHealth(decode(fields[1]), Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+                } else if (fields[0].equals(AFFINITY)) {
+                    leases.restoreAffinityKey(decode(fields[1]), decode(fields[2]));
+                } else if (fields[0].equals(LAST_LEASED)) {
+                    leases.restoreLastLeasedValue(decode(fields[1]));
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Ignoring malformed record in " + recordFile + ": " + line, e);
+            }
+        }
+    }
+
+    private void write(File recordFile, PoolLeases leases) throws IOException {
+        AtomicFileWriter writer = new AtomicFileWriter(recordFile, UTF_8.name());
+        try {
+            for (PoolLeases.Lease lease : leases.getLeases()) {
+                String controller = controllerId;
+                String owner = lease.getOwner();
+                int separatorIndex = owner.indexOf(CONTROLLER_SEPARATOR);
+                if (separatorIndex >= 0) {
+                    controller = owner.substring(0, separatorIndex);
+                    owner = owner.substring(separatorIndex + 1);
+                }
+                writer.write(LEASE + " " + encode(lease.getValue()) + " " + encode(controller) + " " + encode(owner)
+                        + " " + lease.getLeasedAt() + " " + lease.getRenewedAt() + "\n");
+            }
+            for (String value : leases.getValuesInReleaseOrder()) {
+                writer.write(RELEASE_TIME + " " + encode(value) + " " + leases.getReleaseTime(value) + "\n");
+            }
+            for (String value : leases.getFailingValues()) {
+                writer.write(FAILURES + " " + encode(value) + " " + leases.getConsecutiveFailures(value) + " "
+                        + leases.getLastFailureTime(value) + "\n");
+            }
+            for (Map.Entry<String, String> entry : leases.getAffinityKeys().entrySet()) {
+                writer.write(AFFINITY + " " + encode(entry.getKey()) + " " + encode(entry.getValue()) + "\n");
+            }
+            if (leases.getLastLeasedValue() != null) {
+                writer.write(LAST_LEASED + " " + encode(leases.getLastLeasedValue()) + "\n");
+            }
+            writer.commit();
+        } finally {
+            writer.abort();
+        }
+    }
+
+    private static String encode(String text) {
+        try {
+            return URLEncoder.encode(text, UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String text) {
+        try {
+            return URLDecoder.decode(text, UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Result;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives selection and leasing from many threads at once against synthetic projects, without starting Jenkins.
+ * Each allocation stands in for a build: it selects a value from the history of the projects, holds it briefly,
+ * then completes and releases it. Every value in use is counted, so a value ever held by more builds than its
+ * capacity is reported as a violation.
+ *
+ * Run the main method to report throughput and latency as the number of threads and the pool size grow.
+ */
+public class AllocationStressTest {
+
+    private static final int PROJECT_COUNT = 4;
+
+    /**
+     * Most recent builds kept for each project, older builds drop out of the history as they would from the index.
+     */
+    private static final int HISTORY_SIZE = 100;
+
+    @Test
+    public void valueIsNeverLeasedTwice() throws Exception {
+        Report report = run("vm[1..50]", 200, 10);
+        assertEquals(0, report.violations);
+        assertEquals(2000, report.allocations);
+    }
+
+    @Test
+    public void valueIsNeverLeasedAboveItsCapacity() throws Exception {
+        Report report = run("bighost[1..10]x5", 200, 10);
+        assertEquals(0, report.violations);
+        assertEquals(2000, report.allocations);
+    }
+
+    public static void main(String[] args) throws Exception {
+        // warms up the selection code so the first row isn't measured while it is still interpreted
+        run("vm[1..256]", 8, 1000);
+        System.out.println(Report.HEADER);
+        for (int poolSize : new int[] {16, 256, 4096}) {
+            for (int threads : new int[] {1, 8, 64, 256}) {
+                System.out.println(run("vm[1.." + poolSize + "]", threads, 200));
+            }
+        }
+    }
+
+    /**
+     * Runs the allocations on the threads at once, each thread retrying whenever the whole pool is in use.
+     */
+    static Report run(String values, int threads, final int allocationsPerThread) throws Exception {
+        final PoolValueSet pool = new ParameterParser(values).getValues();
+        final PoolLeaseRegistry leaseRegistry = new PoolLeaseRegistry();
+        final List<FakeProject> projects = new ArrayList<FakeProject>();
+        for (int i = 0; i < PROJECT_COUNT; i ++) {
+            projects.add(new FakeProject("project" + i));
+        }
+        final ConcurrentMap<String, AtomicInteger> buildsUsingValue = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger violations = new AtomicInteger();
+        final AtomicInteger exhausted = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+        for (int i = 0; i < threads; i ++) {
+            final FakeProject project = projects.get(i % PROJECT_COUNT);
+            results.add(executor.submit(new Callable<long[]>() {
+                public long[] call() throws Exception {
+                    PoolValueSelector selector = new PoolValueSelector("testValue", pool, false, leaseRegistry);
+                    long[] latencies = new long[allocationsPerThread];
+                    startLatch.await();
+                    for (int allocation = 0; allocation < allocationsPerThread; allocation ++) {
+                        PoolBuildRecord build = project.newBuild();
+                        String value;
+                        long startTime = System.nanoTime();
+                        try {
+                            value = selector.allocate(build.getId(), history(projects), selector.newTrace());
+                        } catch (IllegalArgumentException e) {
+                            exhausted.incrementAndGet();
+                            allocation --;
+                            Thread.yield();
+                            continue;
+                        }
+                        latencies[allocation] = System.nanoTime() - startTime;
+
+                        AtomicInteger builds = buildsUsingValue.get(value);
+                        if (builds == null) {
+                            buildsUsingValue.putIfAbsent(value, new AtomicInteger());
+                            builds = buildsUsingValue.get(value);
+                        }
+                        if (builds.incrementAndGet() > pool.getCapacity(value)) {
+                            violations.incrementAndGet();
+                        }
+                        build.putValue("testValue", value);
+                        project.started(build);
+                        Thread.yield();
+
+                        // the value stops counting as used before its lease is released, as it must be free by then
+                        builds.decrementAndGet();
+                        build.setResult(build.getNumber() % 10 == 0 ? Result.FAILURE : Result.SUCCESS);
+                        leaseRegistry.releaseAll(build.getId());
+                    }
+                    return latencies;
+                }
+            }));
+        }
+        long startTime = System.nanoTime();
+        startLatch.countDown();
+        List<long[]> threadLatencies = new ArrayList<long[]>();
+        for (Future<long[]> result : results) {
+            threadLatencies.add(result.get());
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+        executor.shutdown();
+
+        return new Report(pool.size(), threads, threadLatencies, elapsedNanos, exhausted.get(), violations.get());
+    }
+
+    private static Iterator<PoolBuildRecord> history(List<FakeProject> projects) {
+        List<Iterator<PoolBuildRecord>> iterators = new ArrayList<Iterator<PoolBuildRecord>>();
+        for (FakeProject project : projects) {
+            iterators.add(project.getBuilds().iterator());
+        }
+        return new MergingIterator<PoolBuildRecord>(iterators, PoolBuildRecord.NEWEST_FIRST);
+    }
+
+    /**
+     * Project that numbers its builds and keeps its most recent builds, newest first.
+     */
+    private static class FakeProject {
+
+        private final String name;
+
+        private final AtomicInteger nextNumber = new AtomicInteger(1);
+
+        private final LinkedList<PoolBuildRecord> builds = new LinkedList<PoolBuildRecord>();
+
+        private FakeProject(String name) {
+            this.name = name;
+        }
+
+        PoolBuildRecord newBuild() {
+            return new PoolBuildRecord(name, nextNumber.getAndIncrement(), System.currentTimeMillis());
+        }
+
+        synchronized void started(PoolBuildRecord build) {
+            builds.addFirst(build);
+            if (builds.size() > HISTORY_SIZE) {
+                builds.removeLast();
+            }
+        }
+
+        /**
+         * @return copy of the builds, so that builds started while selecting don't affect the iteration
+         */
+        synchronized List<PoolBuildRecord> getBuilds() {
+            return new ArrayList<PoolBuildRecord>(builds);
+        }
+    }
+
+    static class Report {
+
+        static final String HEADER = String.format("%8s %8s %12s %10s %10s %10s %10s %10s %10s",
+                "values", "threads", "allocs/s", "p50 us", "p99 us", "p99.9 us", "max us", "exhausted", "violations");
+
+        final int poolSize;
+
+        final int threads;
+
+        final int allocations;
+
+        final double allocationsPerSecond;
+
+        final long[] latencies;
+
+        final int exhausted;
+
+        final int violations;
+
+        Report(int poolSize, int threads, List<long[]> threadLatencies, long elapsedNanos, int exhausted,
+               int violations) {
+            this.poolSize = poolSize;
+            this.threads = threads;
+            int allocations = 0;
+            for (long[] latencies : threadLatencies) {
+                allocations += latencies.length;
+            }
+            this.allocations = allocations;
+            this.latencies = new long[allocations];
+            int index = 0;
+            for (long[] latencies : threadLatencies) {
+                System.arraycopy(latencies, 0, this.latencies, index, latencies.length);
+                index += latencies.length;
+            }
+            Arrays.sort(this.latencies);
+            this.allocationsPerSecond = allocations * 1e9 / elapsedNanos;
+            this.exhausted = exhausted;
+            this.violations = violations;
+        }
+
+        /**
+         * @return latency in microseconds that the fraction of allocations took at most
+         */
+        long percentileMicros(double fraction) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = Math.min(latencies.length - 1, (int) Math.ceil(fraction * latencies.length) - 1);
+            return latencies[Math.max(0, index)] / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%8d %8d %12.0f %10d %10d %10d %10d %10d %10d", poolSize, threads,
+                    allocationsPerSecond, percentileMicros(0.5), percentileMicros(0.99), percentileMicros(0.999),
+                    percentileMicros(1), exhausted, violations);
+        }
+    }
+}
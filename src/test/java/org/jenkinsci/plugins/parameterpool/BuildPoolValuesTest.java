@@ -0,0 +1,149 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Result;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BuildPoolValuesTest {
+
+    private final BuildPoolValues poolValues = new BuildPoolValues(new ParameterParser("vm[1..4]").getValues());
+
+    @Test
+    public void selectFirstUnusedValue() {
+        poolValues.addPoolValue(Result.NOT_BUILT, "vm1");
+        poolValues.addPoolValue(Result.SUCCESS, "vm2");
+        assertEquals("vm3", poolValues.selectValue(false));
+    }
+
+    @Test
+    public void selectFunctionalValueBeforeFailedValue() {
+        poolValues.addPoolValue(Result.FAILURE, "vm1");
+        poolValues.addPoolValue(Result.NOT_BUILT, "vm2");
+        poolValues.addPoolValue(Result.UNSTABLE, "vm3");
+        poolValues.addPoolValue(Result.SUCCESS, "vm4");
+        assertEquals("vm3", poolValues.selectValue(false));
+    }
+
+    @Test
+    public void selectFailedValueWhenPreferringErrors() {
+        poolValues.addPoolValue(Result.SUCCESS, "vm1");
+        poolValues.addPoolValue(Result.ABORTED, "vm3");
+        assertEquals("vm3", poolValues.selectValue(true));
+    }
+
+    @Test
+    public void mostRecentResultIsUsed() {
+        poolValues.addPoolValue(Result.SUCCESS, "vm1");
+        poolValues.addPoolValue(Result.FAILURE, "vm1");
+        poolValues.addPoolValue(Result.FAILURE, "vm2");
+        poolValues.addPoolValue(Result.SUCCESS, "vm2");
+        poolValues.addPoolValue(Result.NOT_BUILT, "vm3");
+        poolValues.addPoolValue(Result.NOT_BUILT, "vm4");
+        assertEquals("vm1", poolValues.selectValue(false));
+        assertEquals("vm2", poolValues.selectValue(true));
+    }
+
+    @Test
+    public void noValueSelectedWhenAllAreRunning() {
+        for (String value : new String[] {"vm1", "vm2", "vm3", "vm4", "notInPool"}) {
+            poolValues.addPoolValue(Result.NOT_BUILT, value);
+        }
+        assertNull(poolValues.selectValue(false));
+    }
+
+    @Test
+    public void repeatedPoolValueIsNotSelectedTwice() {
+        BuildPoolValues values = new BuildPoolValues(new ParameterParser("vm2, vm[1..3]").getValues());
+        values.addPoolValue(Result.NOT_BUILT, "vm2");
+        values.addPoolValue(Result.NOT_BUILT, "vm1");
+        assertEquals("vm3", values.selectValue(false));
+    }
+
+    @Test
+    public void valuesAreRecordedInTrace() {
+        poolValues.addPoolValue(Result.NOT_BUILT, "vm1");
+        poolValues.addPoolValue(Result.SUCCESS, "vm2");
+        poolValues.addPoolValue(Result.FAILURE, "vm3");
+        poolValues.addPoolValue(Result.FAILURE, "notInPool");
+
+        PoolSelectionTrace trace = new PoolSelectionTrace("testValue", "vm[1..4]");
+        poolValues.recordValues(trace);
+        trace.setSelectedValue(poolValues.selectValue(false));
+
+        assertEquals(Arrays.asList("vm1"), trace.getValuesFromRunningBuilds());
+        assertEquals(Arrays.asList("vm2"), trace.getValuesFromFunctionalBuilds());
+        assertEquals(Arrays.asList("vm3"), trace.getValuesFromFailedBuilds());
+        assertEquals(Arrays.asList("notInPool"), trace.getValuesNotInPool());
+        assertEquals("Selected vm4 for testValue after checking 0 builds: 1 in use, 1 from functional builds, "
+                + "1 from non functional builds", trace.getSummary());
+    }
+
+    @Test
+    public void quarantinedValueIsNeverSelected() {
+        poolValues.addPoolValue(Result.NOT_BUILT, "vm1");
+        poolValues.addPoolValue(Result.NOT_BUILT, "vm2");
+        poolValues.addPoolValue(Result.FAILURE, "vm3");
+        poolValues.quarantine("vm4");
+        assertEquals("vm3", poolValues.selectValue(false));
+        poolValues.quarantine("vm3");
+        assertNull(poolValues.selectValue(true));
+    }
+
+    @Test
+    public void freeAffinityValueIsSelectedFirst() {
+        poolValues.addPoolValue(Result.SUCCESS, "vm3");
+        poolValues.addAffinityValue("vm3");
+        assertEquals("vm3", poolValues.selectValue(false));
+
+        poolValues.addPoolValue(Result.NOT_BUILT, "vm3");
+        assertEquals("vm1", poolValues.selectValue(false));
+    }
+
+    @Test
+    public void affinityValueFromFailedBuildIsNotPreferred() {
+        poolValues.addPoolValue(Result.FAILURE, "vm2");
+        poolValues.addAffinityValue("vm2");
+        assertEquals("vm1", poolValues.selectValue(false));
+    }
+
+    @Test
+    public void leastLoadedValueUnderCapacityIsSelected() {
+        BuildPoolValues values = new BuildPoolValues(new ParameterParser("bighost[1..3]x3").getValues());
+        values.addPoolValue(Result.NOT_BUILT, "bighost1");
+        values.addPoolValue(Result.NOT_BUILT, "bighost1");
+        values.addLeases("bighost2", 1);
+        values.addPoolValue(Result.NOT_BUILT, "bighost2");
+        values.addLeases("bighost3", 3);
+        assertEquals("bighost2", values.selectValue(false));
+
+        values.addLeases("bighost2", 3);
+        values.addPoolValue(Result.NOT_BUILT, "bighost1");
+        assertNull(values.selectValue(false));
+    }
+
+    @Test
+    public void unusedValueIsSelectedBeforeSharingValue() {
+        BuildPoolValues values = new BuildPoolValues(new ParameterParser("[bighost]x2, smallhost").getValues());
+        values.addPoolValue(Result.NOT_BUILT, "bighost");
+        values.addPoolValue(Result.FAILURE, "smallhost");
+        assertEquals(Arrays.asList("bighost", "smallhost"), values.selectValues(false, 2));
+    }
+
+    @Test
+    public void selectMultipleValues() {
+        poolValues.addPoolValue(Result.NOT_BUILT, "vm1");
+        poolValues.addPoolValue(Result.FAILURE, "vm2");
+        assertEquals(Arrays.asList("vm3", "vm4", "vm2"), poolValues.selectValues(false, 3));
+    }
+
+    @Test
+    public void noValuesSelectedWhenFewerAreFree() {
+        poolValues.addPoolValue(Result.NOT_BUILT, "vm1");
+        poolValues.addPoolValue(Result.NOT_BUILT, "vm2");
+        assertNull(poolValues.selectValues(false, 3));
+    }
+}
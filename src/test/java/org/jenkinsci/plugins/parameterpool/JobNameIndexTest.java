@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JobNameIndexTest {
+
+    private final JobNameIndex index = new JobNameIndex();
+
+    @Before
+    public void loadNames() {
+        index.load(Arrays.asList("build", "build-tests", "deploy", "folder/build", "folder/nested/test", "folderless"));
+    }
+
+    @Test
+    public void namesWithPrefixAreFound() {
+        assertEquals(Arrays.asList("build", "build-tests"), new ArrayList<String>(index.withPrefix("bui")));
+        assertEquals(Arrays.asList("folder/build", "folder/nested/test"),
+                new ArrayList<String>(index.withPrefix("folder/")));
+        assertTrue(index.withPrefix("missing").isEmpty());
+    }
+
+    @Test
+    public void nearestNameSharesLongestPrefix() {
+        assertEquals("build-tests", index.nearest("build-test"));
+        assertEquals("deploy", index.nearest("deployment"));
+        assertEquals("build", index.nearest("a"));
+    }
+
+    @Test
+    public void deletingFolderRemovesNestedNames() {
+        index.remove("folder");
+        assertTrue(index.withPrefix("folder/").isEmpty());
+        assertTrue(index.contains("folderless"));
+    }
+
+    @Test
+    public void renamedNameIsReplaced() {
+        index.remove("deploy");
+        index.add("release");
+        assertFalse(index.contains("deploy"));
+        assertTrue(index.contains("release"));
+    }
+}
@@ -0,0 +1,63 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class MergingIteratorTest {
+
+    @Test
+    public void mergesSortedIterators() {
+        List<Iterator<Integer>> iterators = new ArrayList<Iterator<Integer>>();
+        iterators.add(Arrays.asList(9, 5, 1).iterator());
+        iterators.add(Collections.<Integer>emptyList().iterator());
+        iterators.add(Arrays.asList(8, 7, 2).iterator());
+        iterators.add(Arrays.asList(6).iterator());
+
+        MergingIterator<Integer> mergingIterator =
+                new MergingIterator<Integer>(iterators, Collections.<Integer>reverseOrder());
+        List<Integer> merged = new ArrayList<Integer>();
+        while (mergingIterator.hasNext()) {
+            merged.add(mergingIterator.next());
+        }
+        assertEquals(Arrays.asList(9, 8, 7, 6, 5, 2, 1), merged);
+    }
+
+    @Test
+    public void onlyHeadElementsAreRead() {
+        final List<Integer> readElements = new ArrayList<Integer>();
+        List<Iterator<Integer>> iterators = new ArrayList<Iterator<Integer>>();
+        for (final List<Integer> values : Arrays.asList(Arrays.asList(4, 3), Arrays.asList(2, 1))) {
+            iterators.add(new Iterator<Integer>() {
+                private final Iterator<Integer> iterator = values.iterator();
+
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                public Integer next() {
+                    Integer value = iterator.next();
+                    readElements.add(value);
+                    return value;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+        }
+
+        MergingIterator<Integer> mergingIterator =
+                new MergingIterator<Integer>(iterators, Collections.<Integer>reverseOrder());
+        assertEquals(Integer.valueOf(4), mergingIterator.next());
+        assertEquals(Arrays.asList(4, 2, 3), readElements);
+        assertFalse(readElements.contains(1));
+    }
+}
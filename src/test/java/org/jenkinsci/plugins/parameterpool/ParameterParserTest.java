@@ -3,6 +3,9 @@ package org.jenkinsci.plugins.parameterpool;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ParameterParserTest {
 
@@ -37,9 +40,139 @@ public class ParameterParserTest {
         assertEquals("t!@#$%^&*()/.<43, t!@#$%^&*()/.<42, t!@#$%^&*()/.<41", processor.valuesAsText());
     }
 
+    @Test
+    public void parseValuesWithCapacity() {
+        ParameterParser processor = new ParameterParser("bighost[1..3]x4, [gpuhost]x2, smallhost");
+        assertEquals("bighost1, bighost2, bighost3, gpuhost, smallhost", processor.valuesAsText());
+        PoolValueSet values = processor.getValues();
+        assertEquals(4, values.getCapacity("bighost2"));
+        assertEquals(2, values.getCapacity("gpuhost"));
+        assertEquals(1, values.getCapacity("smallhost"));
+        assertEquals(15, values.getTotalCapacity());
+        assertEquals("bighost[1..3]x4, [gpuhost]x2, smallhost", values.getDefinition());
+    }
+
+    @Test
+    public void parseZeroPaddedRange() {
+        PoolValueSet values = new ParameterParser("vm[08..11]").getValues();
+        assertEquals("vm08, vm09, vm10, vm11", new ParameterParser("vm[08..11]").valuesAsText());
+        assertEquals(1, values.indexOf("vm09"));
+        assertFalse(values.contains("vm9"));
+        assertEquals("vm[08..11]", values.getDefinition());
+    }
+
+    @Test
+    public void parseRangeWithStep() {
+        ParameterParser processor = new ParameterParser("port[8000..8030:10], port[9..1:4]");
+        assertEquals("port8000, port8010, port8020, port8030, port9, port5, port1", processor.valuesAsText());
+        assertFalse(processor.getValues().contains("port8005"));
+        assertEquals("port[8000..8030:10], port[9..1:4]", processor.getValues().getDefinition());
+    }
+
+    @Test
+    public void parseEveryCombinationOfRanges() {
+        ParameterParser processor = new ParameterParser("rack[1..2]-vm[01..03]");
+        assertEquals("rack1-vm01, rack1-vm02, rack1-vm03, rack2-vm01, rack2-vm02, rack2-vm03",
+                processor.valuesAsText());
+        PoolValueSet values = processor.getValues();
+        assertEquals(4, values.indexOf("rack2-vm02"));
+        assertEquals("rack2-vm02", values.get(4));
+        assertFalse(values.contains("rack3-vm01"));
+    }
+
+    @Test
+    public void combinationsNotSeparatedByTextAreOnlyListedOnce() {
+        PoolValueSet values = new ParameterParser("a[1..11][1..11]").getValues();
+        // a111 is both 1 then 11 and 11 then 1
+        assertEquals(120, values.size());
+        assertEquals(10, values.indexOf("a111"));
+        assertFalse(values.isFirstOccurrence(110));
+    }
+
+    @Test
+    public void excludedValuesAreLeftOut() {
+        ParameterParser processor = new ParameterParser("vm[1..6], !vm[2..3], ! vm5");
+        assertEquals("vm1, vm4, vm6", processor.valuesAsText());
+        PoolValueSet values = processor.getValues();
+        assertEquals(3, values.size());
+        assertEquals(-1, values.indexOf("vm2"));
+        assertEquals(3, values.indexOf("vm4"));
+        assertEquals("vm[1..6], !vm[2..3], !vm5", values.getDefinition());
+    }
+
+    @Test
+    public void valueKeepsOrdinalOfFirstOccurrenceAsRangeOrSingleValue() {
+        PoolValueSet values = new ParameterParser("vm[1..3], vm2, extra, vm5, extra, vm[4..6]").getValues();
+        assertEquals(1, values.indexOf("vm2"));
+        assertEquals(4, values.indexOf("extra"));
+        assertEquals(5, values.indexOf("vm5"));
+        assertEquals(7, values.indexOf("vm4"));
+        assertEquals(-1, values.indexOf("vm7"));
+        assertEquals("vm1, vm2, vm3, extra, vm5, vm4, vm6", new ParameterParser(values.getDefinition()).valuesAsText());
+    }
+
+    @Test
+    public void bracketsWithoutRangeAreKeptInValue() {
+        ParameterParser processor = new ParameterParser("vm[a], vm[1..], [x]y, host[[1..2]]");
+        assertEquals("vm[a], vm[1..], [x]y, host[1], host[2]", processor.valuesAsText());
+    }
+
+    @Test
+    public void zeroPaddedStartWithWiderEndIsRejected() {
+        try {
+            new ParameterParser("vm[01..100]");
+            fail("Expected mixed widths to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("e.g. 001..100"));
+        }
+    }
+
+    @Test
+    public void zeroPaddedEndWithNarrowerStartIsRejected() {
+        try {
+            new ParameterParser("vm[1..010]");
+            fail("Expected mixed widths to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("e.g. 001..010"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroStepIsRejected() {
+        new ParameterParser("vm[1..4:0]");
+    }
+
+    @Test(timeout = 5000)
+    public void unclosedBracketsAreParsedInLinearTime() {
+        StringBuilder text = new StringBuilder("vm");
+        for (int i = 0; i < 200000; i ++) {
+            text.append("[1..");
+        }
+        assertEquals(1, new ParameterParser(text.toString()).getValues().size());
+    }
+
     @Test
     public void parseNoValues() {
         assertEquals("", new ParameterParser(null).valuesAsText());
     }
 
+    @Test
+    public void duplicateValuesAreOnlyListedOnce() {
+        ParameterParser processor = new ParameterParser("vm2, vm[1..3], vm3");
+        assertEquals("vm2, vm1, vm3", processor.valuesAsText());
+        assertEquals(3, processor.getValues().size());
+    }
+
+    @Test
+    public void largeRangeIsNotExpanded() {
+        PoolValueSet values = new ParameterParser("port[20000..60000]").getValues();
+        assertEquals(40001, values.size());
+        assertTrue(values.contains("port45000"));
+        assertFalse(values.contains("port045000"));
+        assertFalse(values.contains("port60001"));
+        assertEquals(25000, values.indexOf("port45000"));
+        assertEquals("port45000", values.get(25000));
+        assertEquals("port[20000..60000]", values.getDefinition());
+    }
+
 }
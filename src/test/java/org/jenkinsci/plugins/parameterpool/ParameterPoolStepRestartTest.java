@@ -0,0 +1,61 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the withParameterPool pipeline step across a restart of the test jenkins instance
+ */
+public class ParameterPoolStepRestartTest {
+    @Rule
+    public RestartableJenkinsRule story = new RestartableJenkinsRule();
+
+    @Test
+    public void valueIsLeasedAgainWhenStepResumes() {
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                WorkflowJob job = story.j.jenkins.createProject(WorkflowJob.class, "restarted");
+                job.setDefinition(new CpsFlowDefinition(
+                        "withParameterPool(name: 'testValue', values: 'vm[1..3]') {\n"
+                        + "  echo \"Holding ${env.testValue}\"\n"
+                        + "  semaphore 'wait'\n"
+                        + "}\n"));
+                WorkflowRun run = job.scheduleBuild2(0).getStartCondition().get();
+                while (!JenkinsRule.getLog(run).contains("Holding vm1")) {
+                    Thread.sleep(100);
+                }
+            }
+        });
+        story.addStep(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                WorkflowJob job = story.j.jenkins.getItemByFullName("restarted", WorkflowJob.class);
+                WorkflowRun run = job.getBuildByNumber(1);
+                while (PoolLeaseRegistry.getInstance().getLeasedValues("testValue").isEmpty()) {
+                    Thread.sleep(100);
+                }
+                assertEquals(Collections.singleton("vm1"), PoolLeaseRegistry.getInstance().getLeasedValues("testValue"));
+
+                SemaphoreStep.success("wait/1", null);
+                while (run.isBuilding()) {
+                    Thread.sleep(100);
+                }
+                story.j.assertBuildStatusSuccess(run);
+                assertTrue(PoolLeaseRegistry.getInstance().getLeasedValues("testValue").isEmpty());
+            }
+        });
+    }
+}
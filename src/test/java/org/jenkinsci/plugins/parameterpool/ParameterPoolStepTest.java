@@ -0,0 +1,52 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the withParameterPool pipeline step using a test jenkins instance
+ */
+public class ParameterPoolStepTest {
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void valueIsAvailableInsideBlock() throws Exception {
+        WorkflowJob job = jenkins.jenkins.createProject(WorkflowJob.class, "test pipeline");
+        job.setDefinition(new CpsFlowDefinition(
+                "withParameterPool(name: 'testValue', values: 'vm[1..3]') {\n"
+                + "  echo \"Vm ${env.testValue} used for testing\"\n"
+                + "}\n"));
+
+        WorkflowRun run = jenkins.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        String logText = FileUtils.readFileToString(run.getLogFile());
+        assertTrue(logText, logText.contains("Vm vm1 used for testing"));
+    }
+
+    @Test
+    public void valueIsReleasedWhenBlockExits() throws Exception {
+        WorkflowJob job = jenkins.jenkins.createProject(WorkflowJob.class, "test pipeline");
+        job.setDefinition(new CpsFlowDefinition(
+                "withParameterPool(name: 'testValue', values: 'vm[1..3]') {\n"
+                + "  echo \"First vm ${env.testValue}\"\n"
+                + "}\n"
+                + "withParameterPool(name: 'testValue', values: 'vm[1..3]') {\n"
+                + "  echo \"Second vm ${env.testValue}\"\n"
+                + "}\n"));
+
+        WorkflowRun run = jenkins.assertBuildStatusSuccess(job.scheduleBuild2(0));
+
+        String logText = FileUtils.readFileToString(run.getLogFile());
+        assertTrue(logText, logText.contains("First vm vm1"));
+        assertTrue(logText, logText.contains("Second vm vm1"));
+        assertTrue(logText, logText.contains("Released vm1 back to pool testValue"));
+    }
+}
@@ -5,11 +5,15 @@ import hudson.model.FreeStyleProject;
 import hudson.model.Result;
 import hudson.tasks.Shell;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
 import java.util.concurrent.ExecutionException;
 
 import static org.junit.Assert.assertEquals;
@@ -89,6 +93,152 @@ public class ParameterPoolTest {
         assertThatVmIsInText(completedBuild.getNumber(), 2, logText);
     }
 
+    @Test
+    public void waitInQueueForFreeValue() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("queued project");
+        project.setConcurrentBuild(true);
+        ParameterPoolBuilder poolBuilder = new ParameterPoolBuilder(project.getName(), "testValue", "vm1", false);
+        poolBuilder.setWaitInQueue(true);
+        project.getBuildersList().add(poolBuilder);
+        project.getBuildersList().add(new Shell("sleep 5;\necho Vm ${testValue} used for testing"));
+
+        FreeStyleBuild firstBuild = project.scheduleBuild2(0).waitForStart();
+        FreeStyleBuild secondBuild = project.scheduleBuild2(0).get();
+
+        String logText = FileUtils.readFileToString(secondBuild.getLogFile());
+        assertEquals(logText, Result.SUCCESS, secondBuild.getResult());
+        assertThatVmIsInText(secondBuild.getNumber(), 1, logText);
+    }
+
+    @Test
+    public void selectMultipleValues() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("multiple values project");
+        project.setConcurrentBuild(true);
+        ParameterPoolBuilder poolBuilder = new ParameterPoolBuilder(project.getName(), "testValue", "vm[1..5]", false);
+        poolBuilder.setCount(2);
+        project.getBuildersList().add(poolBuilder);
+        project.getBuildersList().add(new Shell("sleep 5;\necho Vms ${testValue_1} ${testValue_2} from ${testValue}"));
+
+        project.scheduleBuild2(0).waitForStart();
+        FreeStyleBuild completedBuild = project.scheduleBuild2(0).get();
+
+        String logText = FileUtils.readFileToString(completedBuild.getLogFile());
+        assertTrue(logText, logText.contains("Vms vm3 vm4 from vm3,vm4"));
+    }
+
+    @Test
+    public void noValuesSelectedWhenNotEnoughAreFree() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("multiple values project");
+        project.setConcurrentBuild(true);
+        ParameterPoolBuilder poolBuilder = new ParameterPoolBuilder(project.getName(), "testValue", "vm[1..3]", false);
+        poolBuilder.setCount(2);
+        project.getBuildersList().add(poolBuilder);
+        project.getBuildersList().add(new Shell("sleep 5"));
+
+        project.scheduleBuild2(0).waitForStart();
+        FreeStyleBuild completedBuild = project.scheduleBuild2(0).get();
+
+        String logText = FileUtils.readFileToString(completedBuild.getLogFile());
+        assertEquals(logText, Result.FAILURE, completedBuild.getResult());
+        assertTrue(logText, logText.contains("Fewer than 2 values are free!"));
+    }
+
+    @Test
+    public void jobsShareGlobalPool() throws Exception {
+        ParameterPoolConfiguration.get().setPools(Collections.singletonList(
+                new GlobalPoolDefinition("testValue", "vm[1..3]", null)));
+        FreeStyleProject firstProject = createGlobalPoolProject("first project", 5);
+        FreeStyleProject secondProject = createGlobalPoolProject("second project", 0);
+
+        firstProject.scheduleBuild2(0).waitForStart();
+        FreeStyleBuild completedBuild = secondProject.scheduleBuild2(0).get();
+
+        String logText = FileUtils.readFileToString(completedBuild.getLogFile());
+        assertThatVmIsInText(completedBuild.getNumber(), 2, logText);
+    }
+
+    @Test
+    public void globalPoolWithoutProjectsChecksEveryJobUsingIt() throws Exception {
+        ParameterPoolConfiguration.get().setPools(Collections.singletonList(
+                new GlobalPoolDefinition("testValue", "vm[1..3]", null)));
+        FreeStyleProject firstProject = createGlobalPoolProject("first project", 0);
+        FreeStyleProject secondProject = createGlobalPoolProject("second project", 0);
+
+        jenkins.buildAndAssertSuccess(firstProject);
+        FreeStyleBuild completedBuild = jenkins.buildAndAssertSuccess(secondProject);
+
+        // vm1 was last used by a build of the first project, so a value that hasn't been used is preferred
+        String logText = FileUtils.readFileToString(completedBuild.getLogFile());
+        assertThatVmIsInText(completedBuild.getNumber(), 2, logText);
+    }
+
+    @Test
+    public void resolvedProjectsAreClearedWhenJobIsRenamed() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("original name");
+        FreeStyleProject otherProject = jenkins.createFreeStyleProject("other project");
+        ProjectResolver resolver = ProjectResolver.getInstance();
+
+        assertEquals(Collections.singletonList(project), resolver.resolve("original name", otherProject));
+        assertEquals(1, resolver.size());
+
+        project.renameTo("new name");
+        assertEquals(0, resolver.size());
+        assertEquals(Collections.singletonList(project), resolver.resolve("new name", otherProject));
+    }
+
+    @Test
+    public void poolStatusIsNotModifiedUntilPoolStateChanges() throws Exception {
+        FreeStyleProject project = createProject(0, false);
+        project.scheduleBuild2(0).get();
+
+        HttpURLConnection firstRequest = openPoolStatus(null);
+        assertEquals(HttpURLConnection.HTTP_OK, firstRequest.getResponseCode());
+        String status = IOUtils.toString(firstRequest.getInputStream(), "UTF-8");
+        assertTrue(status, status.contains("\"functional\":[\"vm1\"]"));
+        String entityTag = firstRequest.getHeaderField("ETag");
+
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, openPoolStatus(entityTag).getResponseCode());
+        project.scheduleBuild2(0).get();
+        assertEquals(HttpURLConnection.HTTP_OK, openPoolStatus(entityTag).getResponseCode());
+    }
+
+    @Test
+    public void poolStatusCountsValueWithSpareCapacityAsFree() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("shared project");
+        project.getBuildersList().add(new ParameterPoolBuilder(project.getName(), "testValue", "[vm1]x2", false));
+        project.getBuildersList().add(new Shell("sleep 5"));
+        FreeStyleBuild runningBuild = project.scheduleBuild2(0).waitForStart();
+        while (runningBuild.getAction(ParameterPoolBuilder.ParameterEnvAction.class) == null) {
+            Thread.sleep(100);
+        }
+
+        String status = IOUtils.toString(openPoolStatus(null).getInputStream(), "UTF-8");
+        assertTrue(status, status.contains("\"free\":[\"vm1\"]"));
+        assertTrue(status, status.contains("\"running\":[\"vm1\"]"));
+        while (runningBuild.isBuilding()) {
+            Thread.sleep(100);
+        }
+        jenkins.assertBuildStatusSuccess(runningBuild);
+    }
+
+    private HttpURLConnection openPoolStatus(String entityTag) throws IOException {
+        URL statusUrl = new URL(jenkins.getURL(), "parameter-pool/pool/testValue/");
+        HttpURLConnection connection = (HttpURLConnection) statusUrl.openConnection();
+        if (entityTag != null) {
+            connection.setRequestProperty("If-None-Match", entityTag);
+        }
+        return connection;
+    }
+
+    private FreeStyleProject createGlobalPoolProject(String name, int sleepDuration) throws IOException {
+        FreeStyleProject project = jenkins.createFreeStyleProject(name);
+        ParameterPoolBuilder poolBuilder = new ParameterPoolBuilder(null, null, null, false);
+        poolBuilder.setGlobalPool("testValue");
+        project.getBuildersList().add(poolBuilder);
+        project.getBuildersList().add(new Shell("sleep " + sleepDuration + ";\necho Vm ${testValue} used for testing"));
+        return project;
+    }
+
     private void assertThatVmIsInText(int buildNumber, int vmNumber, String logText) {
         assertTrue("Expected vm" + vmNumber + " in text " + buildNumber + " " + logText,
                 logText.contains("Vm vm" + vmNumber + " used for testing"));
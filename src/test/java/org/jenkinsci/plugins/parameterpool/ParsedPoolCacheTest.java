@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ParsedPoolCacheTest {
+
+    private final ParsedPoolCache cache = new ParsedPoolCache(2);
+
+    @Test
+    public void sameTextReturnsCachedPool() {
+        PoolValueSet pool = cache.get("vm[1..3]");
+        assertSame(pool, cache.get("vm[1..3]"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void leastRecentlyUsedPoolIsEvicted() {
+        PoolValueSet firstPool = cache.get("vm[1..3]");
+        cache.get("host[1..2]");
+        cache.get("vm[1..3]");
+        cache.get("port[1..9]");
+
+        assertEquals(2, cache.size());
+        assertSame(firstPool, cache.get("vm[1..3]"));
+        cache.get("host[1..2]");
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void differentTextIsParsedSeparately() {
+        assertNotSame(cache.get("vm1, vm2"), cache.get("vm1,vm2"));
+    }
+
+    @Test
+    public void fileIsOnlyParsedAgainWhenItChanges() throws IOException {
+        File file = File.createTempFile("pool", ".txt");
+        try {
+            FileUtils.writeStringToFile(file, "# inventory\nhost1\n\nhost[2..3], spare\n", "UTF-8");
+            PoolValueSet pool = cache.get("file:" + file.getPath());
+            assertEquals("host1, host[2..3], spare", pool.getDefinition());
+            assertSame(pool, cache.get("file:" + file.getPath()));
+            String revision = cache.getRevision("file:" + file.getPath());
+
+            FileUtils.writeStringToFile(file, "host1\nhost[2..4]\n", "UTF-8");
+            file.setLastModified(file.lastModified() + 2000);
+            PoolValueSet reloadedPool = cache.get("file:" + file.getPath());
+            assertNotSame(pool, reloadedPool);
+            assertTrue(reloadedPool.contains("host4"));
+            assertFalse(reloadedPool.contains("spare"));
+            assertFalse(revision.equals(cache.getRevision("file:" + file.getPath())));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void rewriteOfSameLengthWithinTimestampGranularityIsNoticed() throws IOException {
+        File file = File.createTempFile("pool", ".txt");
+        try {
+            FileUtils.writeStringToFile(file, "host1\n", "UTF-8");
+            long lastModified = file.lastModified();
+            assertTrue(cache.get("file:" + file.getPath()).contains("host1"));
+
+            FileUtils.writeStringToFile(file, "host2\n", "UTF-8");
+            file.setLastModified(lastModified);
+            PoolValueSet reloadedPool = cache.get("file:" + file.getPath());
+            assertTrue(reloadedPool.contains("host2"));
+            assertFalse(reloadedPool.contains("host1"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingFileIsRejected() {
+        cache.get("file:/missing/pool.txt");
+    }
+}
@@ -0,0 +1,126 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Result;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PoolJournalTest {
+
+    private File journalFile;
+
+    private PoolJournal journal;
+
+    @Before
+    public void createJournal() throws IOException {
+        journalFile = File.createTempFile("pool", ".journal");
+        journal = new PoolJournal(journalFile);
+    }
+
+    @After
+    public void deleteJournal() {
+        journal.delete();
+    }
+
+    @Test
+    public void eventsAreReplayed() throws IOException {
+        PoolBuildRecord firstBuild = new PoolBuildRecord("test project", 1, 1000);
+        PoolBuildRecord secondBuild = new PoolBuildRecord("test project", 2, 2000);
+        journal.appendStarted(firstBuild);
+        journal.appendValue(firstBuild, "testValue", "vm 1");
+        journal.appendStarted(secondBuild);
+        journal.appendValue(secondBuild, "testValue", "vm2");
+        firstBuild.setResult(Result.FAILURE);
+        journal.appendResult(firstBuild);
+
+        Map<Integer, PoolBuildRecord> records = new PoolJournal(journalFile).read("test project");
+
+        assertEquals(2, records.size());
+        assertEquals("vm 1", records.get(1).getValue("testValue"));
+        assertEquals(Result.FAILURE, records.get(1).getResult());
+        assertEquals(2000, records.get(2).getStartTimeInMillis());
+        assertTrue(records.get(2).isBuilding());
+    }
+
+    @Test
+    public void valuesOfParallelBlocksAreReleasedSeparately() throws IOException {
+        PoolBuildRecord build = new PoolBuildRecord("test project", 1, 1000);
+        journal.appendStarted(build);
+        build.addValue("testValue", "vm1");
+        journal.appendValue(build, "testValue", build.getValue("testValue"));
+        build.addValue("testValue", "vm2");
+        journal.appendValue(build, "testValue", build.getValue("testValue"));
+        build.release("testValue", "vm2", Result.FAILURE);
+        journal.appendReleased(build, "testValue", "vm2", Result.FAILURE);
+
+        for (Map<Integer, PoolBuildRecord> records : Arrays.asList(new PoolJournal(journalFile).read("test project"),
+                compactedRecords(build))) {
+            PoolBuildRecord record = records.get(1);
+            assertEquals("vm1,vm2", record.getValue("testValue"));
+            assertEquals(Result.NOT_BUILT, record.getResultFor("testValue", "vm1"));
+            assertEquals(Result.FAILURE, record.getResultFor("testValue", "vm2"));
+            assertEquals(Result.NOT_BUILT, record.getResultFor("testValue"));
+        }
+    }
+
+    private Map<Integer, PoolBuildRecord> compactedRecords(PoolBuildRecord build) throws IOException {
+        journal.compact(Arrays.asList(build));
+        return new PoolJournal(journalFile).read("test project");
+    }
+
+    @Test
+    public void deletedBuildsAreDropped() throws IOException {
+        PoolBuildRecord build = new PoolBuildRecord("test project", 1, 1000);
+        journal.appendStarted(build);
+        journal.appendDeleted(1);
+
+        assertTrue(journal.read("test project").isEmpty());
+    }
+
+    @Test
+    public void partiallyWrittenEventIsDiscarded() throws IOException {
+        PoolBuildRecord build = new PoolBuildRecord("test project", 1, 1000);
+        journal.appendStarted(build);
+        journal.appendValue(build, "testValue", "vm1");
+        long completeLength = journalFile.length();
+
+        FileOutputStream outputStream = new FileOutputStream(journalFile, true);
+        outputStream.write("R 1 SUCC".getBytes("UTF-8"));
+        outputStream.close();
+
+        Map<Integer, PoolBuildRecord> records = journal.read("test project");
+        assertTrue(records.get(1).isBuilding());
+        assertEquals("vm1", records.get(1).getValue("testValue"));
+        assertEquals(completeLength, journalFile.length());
+    }
+
+    @Test
+    public void compactionOnlyKeepsCurrentRecords() throws IOException {
+        PoolBuildRecord build = new PoolBuildRecord("test project", 3, 3000);
+        build.putValue("testValue", "vm3");
+        build.setResult(Result.SUCCESS);
+        for (int i = 0; i < 10; i ++) {
+            journal.appendStarted(new PoolBuildRecord("test project", i + 10, 1000));
+            journal.appendDeleted(i + 10);
+        }
+
+        journal.compact(Arrays.asList(build));
+
+        Map<Integer, PoolBuildRecord> records = journal.read("test project");
+        assertEquals(1, records.size());
+        assertEquals(Result.SUCCESS, records.get(3).getResult());
+        assertNull(records.get(10));
+        assertFalse(journal.needsCompaction());
+    }
+}
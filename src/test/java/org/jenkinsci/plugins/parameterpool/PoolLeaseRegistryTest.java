@@ -0,0 +1,239 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Result;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PoolLeaseRegistryTest {
+
+    private final PoolLeaseRegistry registry = new PoolLeaseRegistry();
+
+    @Test
+    public void valueCannotBeLeasedByTwoOwners() {
+        assertTrue(lease("vm1", "job#1"));
+        assertFalse(lease("vm1", "job#2"));
+        assertEquals(Collections.singleton("vm1"), registry.getLeasedValues("testValue"));
+    }
+
+    @Test
+    public void releaseAllFreesValuesOfOwner() {
+        lease("vm1", "job#1");
+        lease("vm2", "job#1");
+        lease("vm3", "job#2");
+
+        assertEquals(2, registry.releaseAll("job#1"));
+        assertEquals(Collections.singleton("vm3"), registry.getLeasedValues("testValue"));
+    }
+
+    @Test
+    public void leasesAreCountedInStatistics() {
+        PoolStatistics statistics = registry.getStatistics("testValue");
+        statistics.recordSelection(50000, 4);
+        lease("vm1", "job#1");
+        lease("vm2", "job#2");
+        registry.releaseAll("job#1");
+
+        assertEquals(1, statistics.getAllocations());
+        assertEquals(1, statistics.getLeasedValues());
+        assertEquals(25, statistics.getUtilization());
+        assertEquals(1, statistics.getHoldTimeSeconds().getCount());
+        assertEquals(1, statistics.getSelectionLatencyMicros().getCounts()[0]);
+        assertEquals(2, statistics.getValues().size());
+        assertFalse(statistics.getValues().get(0).isLeased());
+        assertTrue(statistics.getValues().get(1).isLeased());
+    }
+
+    @Test
+    public void statisticsOfValuesRemovedFromPoolAreDroppedOnceReleased() {
+        PoolStatistics statistics = registry.getStatistics("testValue");
+        statistics.recordDefinition(new ParameterParser("vm[1..3]").getValues());
+        lease("vm1", "job#1");
+        lease("vm3", "job#2");
+        registry.releaseAll("job#2");
+
+        statistics.recordDefinition(new ParameterParser("vm2").getValues());
+        assertEquals(1, statistics.getValues().size());
+        assertEquals("vm1", statistics.getValues().get(0).getValue());
+    }
+
+    @Test
+    public void statisticsOfUnusedPoolsWithoutLeasesAreDropped() {
+        registry.getStatistics("idle pool");
+        lease("vm1", "job#1");
+
+        assertEquals(1, registry.pruneStatistics(System.currentTimeMillis() + 1));
+        assertEquals(null, registry.findStatistics("idle pool"));
+        assertTrue(registry.findStatistics("testValue") != null);
+    }
+
+    @Test
+    public void valueIsQuarantinedAfterFailuresInARow() {
+        QuarantinePolicy policy = QuarantinePolicy.ofMinutes(2, 60);
+        for (int i = 0; i < 2; i ++) {
+            lease("vm1", "job#" + i);
+            registry.releaseAll("job#" + i, Result.FAILURE);
+            lease("vm2", "job#" + i);
+            registry.releaseAll("job#" + i, i == 0 ? Result.FAILURE : Result.SUCCESS);
+        }
+        lease("vm3", "job#2");
+        registry.releaseAll("job#2", Result.ABORTED);
+
+        assertEquals(Collections.singleton("vm1"), registry.getQuarantinedValues("testValue", policy));
+        assertTrue(registry.getQuarantinedValues("testValue", QuarantinePolicy.NEVER).isEmpty());
+        assertTrue(registry.getQuarantinedValues("testValue", new QuarantinePolicy(2, 0)).isEmpty());
+    }
+
+    @Test
+    public void valueLastUsedWithAffinityKeyIsReused() {
+        PoolValueSelector selector = new PoolValueSelector("testValue",
+                new ParameterParser("vm[1..3]").getValues(), false, registry);
+        assertEquals("vm1", allocate(selector, "master", "job#1"));
+        assertEquals("vm2", allocate(selector, "feature", "job#2"));
+        registry.releaseAll("job#1");
+        registry.releaseAll("job#2");
+
+        assertEquals("vm2", allocate(selector, "feature", "job#3"));
+        assertEquals("vm1", allocate(selector, "master", "job#4"));
+        PoolStatistics statistics = registry.getStatistics("testValue");
+        assertEquals(4, statistics.getAffinityRequests());
+        assertEquals(2, statistics.getAffinityHits());
+        assertEquals(50, statistics.getAffinityHitRate());
+    }
+
+    @Test
+    public void valueIsLeasedUpToItsCapacity() {
+        PoolValueSelector selector = new PoolValueSelector("testValue",
+                new ParameterParser("bighost[1..2]x2").getValues(), false, registry);
+        List<String> values = new ArrayList<String>();
+        for (int i = 1; i <= 4; i ++) {
+            values.add(allocate(selector, null, "job#" + i));
+        }
+        assertEquals(Arrays.asList("bighost1", "bighost2", "bighost1", "bighost2"), values);
+        try {
+            allocate(selector, null, "job#5");
+            fail("All leases on the pool should be taken");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        registry.releaseAll("job#3");
+        assertEquals("bighost1", allocate(selector, null, "job#6"));
+        assertEquals(2, registry.getLeaseCounts("testValue").get("bighost1").intValue());
+        assertEquals(100, registry.getStatistics("testValue").getUtilization());
+    }
+
+    @Test
+    public void valuesAreNotLeasedIfAnyValueIsAlreadyFull() {
+        lease("vm4", "job#1");
+        // picks the lowest free value, then a value leased by another build
+        SelectionStrategy strategy = new SelectionStrategy() {
+            private int selections;
+
+            public int select(BitSet candidates, SelectionContext context) {
+                return selections ++ == 0 ? candidates.nextSetBit(0) : 3;
+            }
+        };
+        PoolValueSelector selector = new PoolValueSelector("testValue",
+                new ParameterParser("vm[1..4]").getValues(), false, strategy, registry);
+        try {
+            selector.allocate("job#2", Collections.<PoolBuildRecord>emptyList().iterator(), 2, selector.newTrace());
+            fail("vm4 is already leased");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(Collections.singleton("vm4"), registry.getLeasedValues("testValue"));
+    }
+
+    @Test
+    public void leasesThatAreNotRenewedExpire() {
+        registry.update("testValue", new PoolLeaseRegistry.LeaseUpdate<Void>() {
+            public Void apply(PoolLeases leases) {
+                leases.restoreLease("vm1", "job#1", 1000, 1000);
+                leases.restoreLease("vm2", "job#2/step", 1000, 1000);
+                return null;
+            }
+        });
+        assertEquals(new HashSet<String>(Arrays.asList("job#1", "job#2/step")), registry.getOwners());
+
+        assertEquals(1, registry.renewAll(Collections.singleton("job#2/step")));
+        Map<String, List<PoolLeases.Lease>> expiredLeases = registry.releaseExpired(2000);
+
+        assertEquals(Collections.singleton("testValue"), expiredLeases.keySet());
+        PoolLeases.Lease expiredLease = expiredLeases.get("testValue").get(0);
+        assertEquals("vm1", expiredLease.getValue());
+        assertEquals("job#1", expiredLease.getOwner());
+        assertEquals(Collections.singleton("vm2"), registry.getLeasedValues("testValue"));
+        assertEquals("job#2", PoolLeaseReaper.buildIdOf("job#2/step"));
+        assertEquals("folder/job#2", PoolLeaseReaper.buildIdOf("folder/job#2"));
+    }
+
+    @Test
+    public void concurrentOwnersGetUniqueValues() throws Exception {
+        final List<String> pool = new ArrayList<String>();
+        for (int i = 1; i <= 30; i ++) {
+            pool.add("vm" + i);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(30);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 30; i ++) {
+            final String owner = "job#" + i;
+            results.add(executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    startLatch.await();
+                    return registry.update("testValue", new PoolLeaseRegistry.LeaseUpdate<String>() {
+                        public String apply(PoolLeases leases) {
+                            for (String value : pool) {
+                                if (!leases.isLeased(value)) {
+                                    leases.lease(value, owner);
+                                    return value;
+                                }
+                            }
+                            return null;
+                        }
+                    });
+                }
+            }));
+        }
+        startLatch.countDown();
+
+        Set<String> selectedValues = new HashSet<String>();
+        for (Future<String> result : results) {
+            assertTrue("Duplicate value selected", selectedValues.add(result.get()));
+        }
+        executor.shutdown();
+        assertEquals(new HashSet<String>(pool), selectedValues);
+    }
+
+    private String allocate(PoolValueSelector selector, String affinityKey, String owner) {
+        selector.setAffinityKey(affinityKey);
+        return selector.allocate(owner, Collections.<PoolBuildRecord>emptyList().iterator(), selector.newTrace());
+    }
+
+    private boolean lease(final String value, final String owner) {
+        return registry.update("testValue", new PoolLeaseRegistry.LeaseUpdate<Boolean>() {
+            public Boolean apply(PoolLeases leases) {
+                return leases.lease(value, owner);
+            }
+        });
+    }
+}
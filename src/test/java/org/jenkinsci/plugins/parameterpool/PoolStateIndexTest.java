@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.tasks.Shell;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PoolStateIndexTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void buildsAreIndexedAsTheyStartCompleteAndAreDeleted() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("indexed");
+        project.getBuildersList().add(new ParameterPoolBuilder(project.getName(), "testValue", "vm[1..3]", false));
+        FreeStyleBuild firstBuild = jenkins.buildAndAssertSuccess(project);
+        FreeStyleBuild secondBuild = jenkins.buildAndAssertSuccess(project);
+
+        List<PoolBuildRecord> records = PoolStateIndex.getInstance().getRecords(project);
+        assertEquals(2, records.size());
+        assertEquals(secondBuild.getNumber(), records.get(0).getNumber());
+        assertEquals(firstBuild.getNumber(), records.get(1).getNumber());
+        assertEquals("vm1", records.get(1).getValue("testValue"));
+        assertEquals(Result.SUCCESS, records.get(1).getResult());
+
+        secondBuild.delete();
+        records = PoolStateIndex.getInstance().getRecords(project);
+        assertEquals(1, records.size());
+        assertEquals(firstBuild.getNumber(), records.get(0).getNumber());
+    }
+
+    @Test
+    public void recordLeftByDeletedJobIsReplaced() throws Exception {
+        PoolStateIndex index = new PoolStateIndex(null);
+        FreeStyleProject project = jenkins.createFreeStyleProject("recreated");
+        FreeStyleBuild oldBuild = jenkins.buildAndAssertSuccess(project);
+        index.recordStarted(oldBuild);
+        index.recordCompleted(oldBuild);
+        project.delete();
+
+        project = jenkins.createFreeStyleProject("recreated");
+        project.getBuildersList().add(new Shell("exit 1"));
+        FreeStyleBuild newBuild = jenkins.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0).get());
+        assertEquals(oldBuild.getNumber(), newBuild.getNumber());
+        index.recordStarted(newBuild);
+        index.recordCompleted(newBuild);
+
+        List<PoolBuildRecord> records = index.getRecords(project);
+        assertEquals(1, records.size());
+        assertEquals(newBuild.getStartTimeInMillis(), records.get(0).getStartTimeInMillis());
+        assertEquals(Result.FAILURE, records.get(0).getResult());
+    }
+
+    @Test
+    public void buildsWhoseEventsWereLostAreLoadedWithTheJournal() throws Exception {
+        File journalDirectory = new File(jenkins.jenkins.getRootDir(), "test-journals");
+        FreeStyleProject project = jenkins.createFreeStyleProject("journaled");
+        project.getBuildersList().add(new ParameterPoolBuilder(project.getName(), "testValue", "vm[1..3]", false));
+        jenkins.buildAndAssertSuccess(project);
+        assertEquals(1, new PoolStateIndex(journalDirectory).getRecords(project).size());
+
+        // the journal written above never saw this build, as if its events were lost in a crash
+        FreeStyleBuild unjournaledBuild = jenkins.buildAndAssertSuccess(project);
+
+        List<PoolBuildRecord> records = new PoolStateIndex(journalDirectory).getRecords(project);
+        assertEquals(2, records.size());
+        assertEquals(unjournaledBuild.getNumber(), records.get(0).getNumber());
+        assertEquals(unjournaledBuild.getAction(ParameterPoolBuilder.ParameterEnvAction.class).getValue("testValue"),
+                records.get(0).getValue("testValue"));
+    }
+
+    @Test(timeout = 30000)
+    public void historyIsLoadedInBackground() throws Exception {
+        PoolStateIndex index = new PoolStateIndex(null);
+        FreeStyleProject project = jenkins.createFreeStyleProject("loaded");
+        jenkins.buildAndAssertSuccess(project);
+        assertFalse(index.isLoaded(project));
+
+        while (!index.loadInBackground(Collections.singletonList(project))) {
+            Thread.sleep(10);
+        }
+        assertTrue(index.isLoaded(project));
+        assertEquals(1, index.getRecords(project).size());
+    }
+
+    @Test
+    public void poolVersionOnlyChangesWithBuildsUsingThePool() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("versioned");
+        project.getBuildersList().add(new ParameterPoolBuilder(project.getName(), "testValue", "vm[1..3]", false));
+        FreeStyleProject otherProject = jenkins.createFreeStyleProject("unrelated");
+        PoolStateIndex index = PoolStateIndex.getInstance();
+
+        jenkins.buildAndAssertSuccess(project);
+        long version = index.getVersion("testValue");
+        assertTrue(version > 0);
+        jenkins.buildAndAssertSuccess(otherProject);
+        assertEquals(version, index.getVersion("testValue"));
+        jenkins.buildAndAssertSuccess(project);
+        assertTrue(index.getVersion("testValue") > version);
+    }
+}
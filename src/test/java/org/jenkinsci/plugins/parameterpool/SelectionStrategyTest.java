@@ -0,0 +1,76 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Result;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class SelectionStrategyTest {
+
+    private final PoolValueSet pool = new ParameterParser("vm[1..4]").getValues();
+
+    private final PoolLeases leases = new PoolLeases("testValue", new PoolStatistics("testValue"));
+
+    @Test
+    public void leastRecentlyUsedSelectsValueNotYetReleased() {
+        leases.lease("vm1", "job#1");
+        leases.release("vm1", "job#1");
+
+        assertEquals("vm2", select(new LeastRecentlyUsedStrategy(), false));
+    }
+
+    @Test
+    public void leastRecentlyUsedSelectsValueReleasedLongestAgo() {
+        for (String value : new String[] {"vm3", "vm1", "vm4", "vm2"}) {
+            leases.lease(value, "job#1");
+            leases.release(value, "job#1");
+        }
+        leases.lease("vm1", "job#1");
+        leases.release("vm1", "job#1");
+
+        assertEquals("vm3", select(new LeastRecentlyUsedStrategy(), false));
+    }
+
+    @Test
+    public void roundRobinSelectsValueAfterLastLeased() {
+        leases.lease("vm2", "job#1");
+
+        assertEquals("vm3", select(new RoundRobinStrategy(), false));
+        leases.lease("vm4", "job#2");
+        assertEquals("vm1", select(new RoundRobinStrategy(), false));
+    }
+
+    @Test
+    public void randomSelectsEveryFreeValue() {
+        leases.lease("vm2", "job#1");
+        Set<String> selectedValues = new HashSet<String>();
+        for (int i = 0; i < 200; i ++) {
+            selectedValues.add(select(new RandomStrategy(), false));
+        }
+        assertEquals(3, selectedValues.size());
+        assertFalse(selectedValues.contains("vm2"));
+    }
+
+    @Test
+    public void failedValuesArePreferredWithAnyStrategy() {
+        BuildPoolValues poolValues = new BuildPoolValues(pool);
+        poolValues.addPoolValue(Result.FAILURE, "vm4");
+        SelectionContext context = new SelectionContext(pool, leases);
+
+        assertEquals("vm4", poolValues.selectValue(true, new RandomStrategy(), context));
+        assertEquals("vm4", poolValues.selectValue(true, new RoundRobinStrategy(), context));
+        assertEquals("vm4", poolValues.selectValue(true, new LeastRecentlyUsedStrategy(), context));
+    }
+
+    private String select(SelectionStrategy strategy, boolean preferError) {
+        BuildPoolValues poolValues = new BuildPoolValues(pool);
+        for (String leasedValue : leases.getLeasedValues()) {
+            poolValues.addPoolValue(Result.NOT_BUILT, leasedValue);
+        }
+        return poolValues.selectValue(preferError, strategy, new SelectionContext(pool, leases));
+    }
+}
@@ -0,0 +1,134 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.Result;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SharedFileLeaseStoreTest {
+
+    private static final int VALUES_PER_CONTROLLER = 20;
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("leases", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void leasesOfOtherControllersAreSeen() {
+        PoolLeaseRegistry firstController = new PoolLeaseRegistry(new SharedFileLeaseStore(directory, "first"));
+        PoolLeaseRegistry secondController = new PoolLeaseRegistry(new SharedFileLeaseStore(directory, "second"));
+
+        assertEquals("vm1", leaseFirstFree(firstController, "job#1"));
+        assertEquals("vm2", leaseFirstFree(secondController, "job#1"));
+        assertEquals(Collections.singleton("vm1"), valuesLeasedByOthers(secondController, "job#1"));
+
+        assertEquals(1, secondController.releaseAll("job#1"));
+        assertEquals(Collections.singleton("vm1"), secondController.getLeasedValues("testValue"));
+
+        assertEquals(1, firstController.releaseAll("job#1", Result.FAILURE));
+        assertTrue(secondController.getLeasedValues("testValue").isEmpty());
+        assertEquals(Collections.singleton("vm1"),
+                secondController.getQuarantinedValues("testValue", QuarantinePolicy.ofMinutes(1, 60)));
+    }
+
+    @Test
+    public void leasesOfOtherControllersAreNeverReaped() {
+        PoolLeaseRegistry firstController = new PoolLeaseRegistry(new SharedFileLeaseStore(directory, "first"));
+        PoolLeaseRegistry secondController = new PoolLeaseRegistry(new SharedFileLeaseStore(directory, "second"));
+
+        assertEquals("vm1", leaseFirstFree(firstController, "job#1"));
+        // the second controller has no lease timeout, so it never renews this lease
+        assertEquals("vm2", leaseFirstFree(secondController, "job#1"));
+
+        Map<String, List<PoolLeases.Lease>> expiredLeases = firstController.releaseExpired(Long.MAX_VALUE);
+        assertEquals(1, expiredLeases.get("testValue").size());
+        assertEquals("vm1", expiredLeases.get("testValue").get(0).getValue());
+        assertEquals(Collections.singleton("vm2"), secondController.getLeasedValues("testValue"));
+        assertEquals("vm1", leaseFirstFree(firstController, "job#2"));
+    }
+
+    @Test
+    public void controllersInSeparateProcessesNeverLeaseSameValue() throws Exception {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        Process otherController = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                SharedFileLeaseStoreTest.class.getName(), directory.getPath(), "second").start();
+
+        List<String> values = leaseValues(directory, "first");
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(otherController.getInputStream(), "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            values.add(line);
+        }
+        assertEquals(0, otherController.waitFor());
+
+        assertEquals(2 * VALUES_PER_CONTROLLER, values.size());
+        assertEquals(2 * VALUES_PER_CONTROLLER, new HashSet<String>(values).size());
+    }
+
+    /**
+     * Leases values as another controller, printing each leased value.
+     */
+    public static void main(String[] args) {
+        for (String value : leaseValues(new File(args[0]), args[1])) {
+            System.out.println(value);
+        }
+    }
+
+    private static List<String> leaseValues(File directory, String controllerId) {
+        PoolLeaseRegistry registry = new PoolLeaseRegistry(new SharedFileLeaseStore(directory, controllerId));
+        List<String> values = new ArrayList<String>();
+        for (int i = 0; i < VALUES_PER_CONTROLLER; i ++) {
+            values.add(leaseFirstFree(registry, "job#" + i));
+        }
+        return values;
+    }
+
+    private static String leaseFirstFree(PoolLeaseRegistry registry, final String owner) {
+        final PoolValueSet pool = new ParameterParser("vm[1.." + (2 * VALUES_PER_CONTROLLER) + "]").getValues();
+        return registry.update("testValue", new PoolLeaseRegistry.LeaseUpdate<String>() {
+            public String apply(PoolLeases leases) {
+                for (String value : pool) {
+                    if (!leases.isLeased(value)) {
+                        leases.lease(value, owner);
+                        return value;
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private Set<String> valuesLeasedByOthers(PoolLeaseRegistry registry, final String owner) {
+        return registry.update("testValue", new PoolLeaseRegistry.LeaseUpdate<Set<String>>() {
+            public Set<String> apply(PoolLeases leases) {
+                return leases.getValuesLeasedByOthers(owner);
+            }
+        });
+    }
+}